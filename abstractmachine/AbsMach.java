@@ -18,26 +18,61 @@
 import java.io.InputStream;
 import java.io.File;
 import java.io.PrintStream;
-import java.util.Stack;
+import java.util.Arrays;
 
 import common.ByteCodes;
 import common.CodeBuffer;
+import common.CommandLine;
+import common.Output;
 import common.RuntimeError;
 import common.RuntimeType;
 
 public class AbsMach {
 
+    private static final int initialStackSize = 1024;
+    private static final int defaultJitThreshold = 1000;
+
     public AbsMach(String fileName) {
+        this(fileName, false);
+    }
+
+    /**
+     * When mapped is true the object file is memory-mapped read-only instead of
+     * being read into the heap.  That only saves copying the file in: the decode
+     * still copies every instruction and string out of the mapping.
+     */
+    public AbsMach(String fileName, Boolean mapped) {
+        this(open(fileName, mapped), fileName);
+    }
+
+    /**
+     * Run an object file that has already been read or mapped into code.
+     */
+    public AbsMach(CodeBuffer code, String source) {
+        this.code = code;
+        load(source);
+    }
+
+    public AbsMach(InputStream in) {
         code = new CodeBuffer();
-        code.readFrom(fileName);
-        stack = new Stack<Integer>();
+        code.readFrom(in);
+        load("stream");
+    }
+
+    /**
+     * Check the object file header and decode the code that follows it.
+     */
+    private void load(String source) {
+        stack = new int[initialStackSize];
+        sp = 0;
+        view = new View();
         runtimeTypeCache = RuntimeType.values();
         byteCodesCache = ByteCodes.values();
 
         String signature = "stmnt";
         for(int i = 0; i < signature.length(); i++) {
             if(code.getByte(i) != signature.charAt(i)) {
-                throw new RuntimeError("invalid signature in " + fileName);
+                throw new RuntimeError("invalid signature in " + source);
             }
         }
 
@@ -46,251 +81,210 @@ public class AbsMach {
             throw new RuntimeError("cannot run major version " + majorVer );
         }
 
+        // Minor version 2 uses the superinstructions; 1 does not.  Version 3 may use
+        // the compact forms too, 4 the typed forms, and 5 TailCall.
         Integer minorVer = code.getByte(signature.length() + 1);
-        if( minorVer != 1) {
+        if( minorVer < 1 || minorVer > 5) {
             throw new RuntimeError("cannot run minor version " + minorVer );
         }
 
-        code.setFinger(code.getInteger(signature.length() + 2));
+        program = Program.decode(code, signature.length() + 6,
+                                 code.getInteger(signature.length() + 2));
+        instructions = program.getInstructions();
     }
 
-    public AbsMach(InputStream in) {
-        code = new CodeBuffer();
-        code.readFrom(in);
-        stack = new Stack<Integer>();
-        runtimeTypeCache = RuntimeType.values();
-        byteCodesCache = ByteCodes.values();
+    /**
+     * Run the program without tracing.
+     */
+    public Integer go() {
+        return go(null);
+    }
 
-        String signature = "stmnt";
-        for(int i = 0; i < signature.length(); i++) {
-            if(code.getByte(i) != signature.charAt(i)) {
-                throw new RuntimeError("invalid signature in stream");
-            }
+    /**
+     * <p>Run the program, calling trace around every instruction.</p>
+     *
+     * <p>The tracing facility costs two interface calls per instruction, so the
+     * machine picks its loop here, once: with no trace, or a plain EmptyTrace, it
+     * runs the whole program in one call to execute(); otherwise it single-steps
+     * execute() between the trace hooks.</p>
+     */
+    public Integer go(Trace trace) {
+        try {
+            return run(trace);
+        }
+        finally {
+            // Whether it halted or failed, what the program printed goes out.
+            output.flush();
         }
+    }
 
-        Integer majorVer = code.getByte(signature.length());
-        if( majorVer != 0) {
-            throw new RuntimeError("cannot run major version " + majorVer );
+    /**
+     * Send what the program prints to output.  By default it goes to System.out
+     * through an Output with the default buffer size and policy.
+     */
+    public void setOutput(Output output) {
+        this.output = output;
+    }
+
+    private Integer run(Trace trace) {
+        push(1);
+        frameBase = 1;
+        returnValue = 0;
+        returnType = 0;
+        pc = program.getEntry();
+
+        if(trace == null || trace.getClass() == EmptyTrace.class) {
+            // Traces see every instruction, so only this loop uses the Jit.
+            if(jitThreshold > 0) {
+                jit = new Jit(this, instructions, jitThreshold);
+            }
+            execute(false);
+            return sp;
         }
 
-        Integer minorVer = code.getByte(signature.length() + 1);
-        if( minorVer != 0) {
-            throw new RuntimeError("cannot run minor version " + minorVer );
+        trace.preProgram(code, view, frameBase);
+        while(true) {
+            // Keep the image finger on the current instruction for the trace.
+            code.setFinger(program.positionOf(pc));
+            trace.preInstruction(code, view, frameBase);
+            if(!execute(true)) {
+                break;
+            }
+            trace.postInstruction(code, view, frameBase);
         }
+        code.setFinger(program.getCodeEnd());
+        trace.postProgram(code, view, frameBase);
+        return sp;
+    }
 
-        code.setFinger(code.getInteger(signature.length() + 2));
+    /**
+     * Translate a function to JVM byte codes once it has been called, or its loops
+     * have gone round, threshold times.  0 turns the Jit off.
+     */
+    public void setJitThreshold(int threshold) {
+        jitThreshold = threshold;
     }
 
-    public Integer go(Trace trace) {
-        stack.push(1);
-        frameBase = 1;
-        Integer returnValue = 0;
-        Integer returnType = 0;
+    /**
+     * Run instructions starting at pc.  With singleStep, run just one and return true
+     * unless it was Halt; otherwise run until Halt and return false.
+     */
+    private Boolean execute(Boolean singleStep) {
+        RuntimeType leftType;
+        int leftValue;
+        RuntimeType rightType;
+        int rightValue;
 
-        trace.preProgram(code, stack, frameBase);
+        int[] instructions = this.instructions;
+        int pc = this.pc;
+        final boolean oneOnly = singleStep;
 
-        loop:
         while(true) {
-            trace.preInstruction(code, stack, frameBase);
-            switch(byteCodesCache[code.readByte()]) {
+            switch(byteCodesCache[instructions[pc++]]) {
             case Halt:
-                break loop;
+                this.pc = pc - 1;
+                return false;
             case Push:
-                leftType = runtimeTypeCache[code.readByte()];
-                leftValue = code.readInteger();
-                stack.push(leftType.ordinal());
-                stack.push(leftValue);
+                leftType = runtimeTypeCache[instructions[pc++]];
+                leftValue = instructions[pc++];
+                push(leftType.ordinal());
+                push(leftValue);
                 break;
             case Pop:
-                stack.pop();  // pop the value
-                stack.pop();  // pop the type
+                pop();  // pop the value
+                pop();  // pop the type
                 break;
             case Add:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
+                leftValue = pop();
+                leftType = runtimeTypeCache[pop()];
 
                 expectTypes(RuntimeType.iInteger, leftType, rightType,
                             "add");
 
-                stack.push(RuntimeType.iInteger.ordinal());
-                stack.push(leftValue + rightValue);
+                push(RuntimeType.iInteger.ordinal());
+                push(leftValue + rightValue);
                 break;
             case Sub:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
+                leftValue = pop();
+                leftType = runtimeTypeCache[pop()];
 
                 expectTypes(RuntimeType.iInteger, leftType, rightType,
                             "subtract");
 
-                stack.push(RuntimeType.iInteger.ordinal());
-                stack.push(leftValue - rightValue);
+                push(RuntimeType.iInteger.ordinal());
+                push(leftValue - rightValue);
                 break;
             case Mul:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
+                leftValue = pop();
+                leftType = runtimeTypeCache[pop()];
 
                 expectTypes(RuntimeType.iInteger, leftType, rightType,
                             "multiply");
 
-                stack.push(RuntimeType.iInteger.ordinal());
-                stack.push(leftValue * rightValue);
+                push(RuntimeType.iInteger.ordinal());
+                push(leftValue * rightValue);
                 break;
             case Div:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
+                leftValue = pop();
+                leftType = runtimeTypeCache[pop()];
 
                 expectTypes(RuntimeType.iInteger, leftType, rightType,
                             "'div'");
 
-                stack.push(RuntimeType.iInteger.ordinal());
-                stack.push(leftValue / rightValue);
+                push(RuntimeType.iInteger.ordinal());
+                push(leftValue / rightValue);
                 break;
             case Rem:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
+                leftValue = pop();
+                leftType = runtimeTypeCache[pop()];
 
                 expectTypes(RuntimeType.iInteger, leftType, rightType,
                             "'rem'");
 
-                stack.push(RuntimeType.iInteger.ordinal());
-                stack.push(leftValue % rightValue);
+                push(RuntimeType.iInteger.ordinal());
+                push(leftValue % rightValue);
                 break;
             case Pow:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
+                leftValue = pop();
+                leftType = runtimeTypeCache[pop()];
 
                 expectTypes(RuntimeType.iInteger, leftType, rightType,
                             "'pow'");
 
-                Double danswer = Math.pow(leftValue, rightValue);
-                stack.push(RuntimeType.iInteger.ordinal());
-                stack.push(danswer.intValue());
+                push(RuntimeType.iInteger.ordinal());
+                push((int)Math.pow(leftValue, rightValue));
                 break;
             case Lt:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
-
-                if(leftType == RuntimeType.iString &&
-                   rightType == RuntimeType.iString) {
-                    String leftString = getString(leftValue);
-                    String rightString = getString(rightValue);
-                    pushBoolean(leftString.compareTo(rightString) < 0);
-                }
-                else {
-                    expectTypes(RuntimeType.iInteger, leftType, rightType,
-                                "'<'");
-                    pushBoolean(leftValue < rightValue);
-                }
-                break;
             case Lte:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
-
-                if(leftType == RuntimeType.iString &&
-                   rightType == RuntimeType.iString) {
-                    String leftString = getString(leftValue);
-                    String rightString = getString(rightValue);
-                    pushBoolean(leftString.compareTo(rightString) <= 0);
-                }
-                else {
-                    expectTypes(RuntimeType.iInteger, leftType, rightType,
-                                "'<='");
-                    pushBoolean(leftValue <= rightValue);
-                }
-                break;
             case Eq:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
-
-                if(leftType == RuntimeType.iString &&
-                   rightType == RuntimeType.iString) {
-                    String leftString = getString(leftValue);
-                    String rightString = getString(rightValue);
-                    pushBoolean(leftString.compareTo(rightString) == 0);
-                }
-                else {
-                    expectTypes(RuntimeType.iInteger, leftType, rightType,
-                                "'?='");
-                    pushBoolean(leftValue == rightValue);
-                }
-                break;
             case Neq:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
-
-                if(leftType == RuntimeType.iString &&
-                   rightType == RuntimeType.iString) {
-                    String leftString = getString(leftValue);
-                    String rightString = getString(rightValue);
-                    pushBoolean(leftString.compareTo(rightString) != 0);
-                }
-                else {
-                    expectTypes(RuntimeType.iInteger, leftType, rightType,
-                                "'!='");
-                    pushBoolean(leftValue != rightValue);
-                }
-                break;
             case Gte:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
-
-                if(leftType == RuntimeType.iString &&
-                   rightType == RuntimeType.iString) {
-                    String leftString = getString(leftValue);
-                    String rightString = getString(rightValue);
-                    pushBoolean(leftString.compareTo(rightString) >= 0);
-                }
-                else {
-                    expectTypes(RuntimeType.iInteger, leftType, rightType,
-                                "'>='");
-                    pushBoolean(leftValue >= rightValue);
-                }
-                break;
             case Gt:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
-
-                if(leftType == RuntimeType.iString &&
-                   rightType == RuntimeType.iString) {
-                    String leftString = getString(leftValue);
-                    String rightString = getString(rightValue);
-                    pushBoolean(leftString.compareTo(rightString) > 0);
-                }
-                else {
-                    expectTypes(RuntimeType.iInteger, leftType, rightType,
-                                "'>'");
-                    pushBoolean(leftValue > rightValue);
-                }
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
+                leftValue = pop();
+                leftType = runtimeTypeCache[pop()];
+
+                pushBoolean(compare(byteCodesCache[instructions[pc - 1]],
+                                    leftType, leftValue, rightType, rightValue));
                 break;
             case And:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
+                leftValue = pop();
+                leftType = runtimeTypeCache[pop()];
 
                 expectTypes(RuntimeType.iBoolean, leftType, rightType,
                             "'and'");
@@ -298,10 +292,10 @@ public class AbsMach {
                 pushBoolean(leftValue == 1 && rightValue == 1);
                 break;
             case Or:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                leftValue = stack.pop();
-                leftType = runtimeTypeCache[stack.pop()];
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
+                leftValue = pop();
+                leftType = runtimeTypeCache[pop()];
 
                 expectTypes(RuntimeType.iBoolean, leftType, rightType,
                             "'or'");
@@ -309,143 +303,238 @@ public class AbsMach {
                 pushBoolean(leftValue == 1 || rightValue == 1);
                 break;
             case Not:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
 
                 expectType(RuntimeType.iBoolean, rightType, "'not'");
 
                 pushBoolean(!(rightValue == 1));
                 break;
+
+            // The compiler has proved the operand types for these.  A result of the
+            // same type as the left operand goes over its value, leaving its type.
+            case IAdd:
+                sp -= 2;
+                stack[sp - 1] += stack[sp + 1];
+                break;
+            case ISub:
+                sp -= 2;
+                stack[sp - 1] -= stack[sp + 1];
+                break;
+            case IMul:
+                sp -= 2;
+                stack[sp - 1] *= stack[sp + 1];
+                break;
+            case IDiv:
+                sp -= 2;
+                stack[sp - 1] /= stack[sp + 1];
+                break;
+            case IRem:
+                sp -= 2;
+                stack[sp - 1] %= stack[sp + 1];
+                break;
+            case IPow:
+                sp -= 2;
+                stack[sp - 1] = (int)Math.pow(stack[sp - 1], stack[sp + 1]);
+                break;
+            case ILt:
+                sp -= 2;
+                stack[sp - 2] = RuntimeType.iBoolean.ordinal();
+                stack[sp - 1] = stack[sp - 1] < stack[sp + 1] ? 1 : 0;
+                break;
+            case ILte:
+                sp -= 2;
+                stack[sp - 2] = RuntimeType.iBoolean.ordinal();
+                stack[sp - 1] = stack[sp - 1] <= stack[sp + 1] ? 1 : 0;
+                break;
+            case IEq:
+                sp -= 2;
+                stack[sp - 2] = RuntimeType.iBoolean.ordinal();
+                stack[sp - 1] = stack[sp - 1] == stack[sp + 1] ? 1 : 0;
+                break;
+            case INeq:
+                sp -= 2;
+                stack[sp - 2] = RuntimeType.iBoolean.ordinal();
+                stack[sp - 1] = stack[sp - 1] != stack[sp + 1] ? 1 : 0;
+                break;
+            case IGte:
+                sp -= 2;
+                stack[sp - 2] = RuntimeType.iBoolean.ordinal();
+                stack[sp - 1] = stack[sp - 1] >= stack[sp + 1] ? 1 : 0;
+                break;
+            case IGt:
+                sp -= 2;
+                stack[sp - 2] = RuntimeType.iBoolean.ordinal();
+                stack[sp - 1] = stack[sp - 1] > stack[sp + 1] ? 1 : 0;
+                break;
+            case BAnd:
+                sp -= 2;
+                stack[sp - 1] &= stack[sp + 1];
+                break;
+            case BOr:
+                sp -= 2;
+                stack[sp - 1] |= stack[sp + 1];
+                break;
+            case BNot:
+                stack[sp - 1] ^= 1;
+                break;
+
             case Print:
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
-                switch(rightType) {
-                case iInteger:
-                    System.out.print(rightValue);
-                    break;
-                case iBoolean:
-                    System.out.print(rightValue == 1);
-                    break;
-                case iString:
-                    System.out.print(getString(rightValue));
-                    break;
-                default:
-                    System.err.println("don't now how to print type " +
-                                       rightType);
-                    break;
-                }
-                System.out.print(" ");
+                rightValue = pop();
+                print(pop(), rightValue);
                 break;
             case Move: {
-                leftValue = code.readInteger();  // frames
-                rightValue = code.readInteger(); // offset
-                Integer tempFrameBase = frameBase;
-                while(leftValue > 0){
-                    tempFrameBase = stack.elementAt(tempFrameBase - 1);
-                    leftValue--;
-                }
-                stack.setElementAt(stack.pop(),
-                                   tempFrameBase + rightValue + 1); // value
-                stack.setElementAt(stack.pop(),
-                                   tempFrameBase + rightValue);     // type
+                leftValue = instructions[pc++];  // frames
+                rightValue = instructions[pc++]; // offset
+                int tempFrameBase = frameBaseFor(leftValue);
+                stack[tempFrameBase + rightValue + 1] = pop(); // value
+                stack[tempFrameBase + rightValue] = pop();     // type
             }
                 break;
             case Copy: {
-                leftValue = code.readInteger();  // frames
-                rightValue = code.readInteger(); // offset
-                Integer tempFrameBase = frameBase;
-                while(leftValue > 0){
-                    tempFrameBase = stack.elementAt(tempFrameBase - 1);
-                    leftValue--;
-                }
-                stack.push(stack.elementAt(tempFrameBase +
-                                           rightValue));      // type
-                stack.push(stack.elementAt(tempFrameBase +
-                                           rightValue + 1));  // value
+                leftValue = instructions[pc++];  // frames
+                rightValue = instructions[pc++]; // offset
+                int tempFrameBase = frameBaseFor(leftValue);
+                push(stack[tempFrameBase + rightValue]);      // type
+                push(stack[tempFrameBase + rightValue + 1]);  // value
             }
                 break;
             case PrtLn:
-                System.out.println();
+                printLine();
                 break;
             case Jmp:
-                leftValue = code.readInteger();
-                code.setFinger(leftValue);
+                leftValue = instructions[pc++];
+                if(jit != null && leftValue < pc) {
+                    // a loop's back edge
+                    this.pc = leftValue;
+                    jit.arrive(leftValue);
+                    pc = this.pc;
+                }
+                else {
+                    pc = leftValue;
+                }
                 break;
             case JmpT:
-                leftValue = code.readInteger();
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
+                leftValue = instructions[pc++];
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
                 expectType(RuntimeType.iBoolean, rightType, "test");
                 if(rightValue == 1) {
-                    code.setFinger(leftValue);
+                    pc = leftValue;
                 }
                 break;
             case JmpF:
-                leftValue = code.readInteger();
-                rightValue = stack.pop();
-                rightType = runtimeTypeCache[stack.pop()];
+                leftValue = instructions[pc++];
+                rightValue = pop();
+                rightType = runtimeTypeCache[pop()];
                 expectType(RuntimeType.iBoolean, rightType, "test");
                 if(rightValue == 0) {
-                    code.setFinger(leftValue);
+                    pc = leftValue;
                 }
                 break;
             case Enter:
-                stack.push(frameBase);
-                frameBase = stack.size();
+                push(frameBase);
+                frameBase = sp;
                 break;
             case Exit:
-                while(stack.size() > frameBase) {
-                    stack.pop();
-                }
-                frameBase = stack.pop();
+                sp = frameBase;
+                frameBase = pop();
                 break;
             case Locals:
-                leftValue = code.readInteger();
-                while(leftValue > 0) {
-                    stack.push(0);
-                    leftValue--;
-                }
+                leftValue = instructions[pc++];
+                ensureCapacity(leftValue);
+                Arrays.fill(stack, sp, sp + leftValue, 0);
+                sp += leftValue;
                 break;
 
             case Call:
-                leftValue = code.readInteger();
-                code.setFinger(leftValue);
+                leftValue = instructions[pc++];
+                pc = leftValue;
+                if(jit != null) {
+                    this.pc = leftValue;
+                    jit.arrive(leftValue);
+                    pc = this.pc;
+                }
                 break;
 
-            case Return: {
-                Integer previousFrameBase = stack.get(frameBase - 1);
-                leftValue = returnValue;  // value
-                leftType= runtimeTypeCache[returnType];  // type
-                stack.set(previousFrameBase - 4, leftValue);
-                stack.set(previousFrameBase - 5, leftType.ordinal());
-                leftValue = stack.elementAt(previousFrameBase - 2);
+            case Return:
+                leave();
+                pc = this.pc;
+                break;
 
-                //                temporary
-                while(stack.size() > frameBase) {
-                    stack.pop();
-                }
-                frameBase = stack.pop();
-                // end of temporary
+            case SetRtn:
+                returnValue = pop();
+                returnType = pop();
+                break;
+
+            case MoveSum: {
+                int baseA = frameBaseFor(instructions[pc++]) + instructions[pc++];
+                int baseB = frameBaseFor(instructions[pc++]) + instructions[pc++];
+                int baseX = frameBaseFor(instructions[pc++]) + instructions[pc++];
+                leftType = runtimeTypeCache[stack[baseA]];
+                leftValue = stack[baseA + 1];
+                rightType = runtimeTypeCache[stack[baseB]];
+                rightValue = stack[baseB + 1];
 
-                code.setFinger(leftValue);
+                expectTypes(RuntimeType.iInteger, leftType, rightType,
+                            "add");
+
+                stack[baseX] = RuntimeType.iInteger.ordinal();
+                stack[baseX + 1] = leftValue + rightValue;
             }
                 break;
 
-            case SetRtn:
-                returnValue = stack.pop();
-                returnType = stack.pop();
+            case CmpJmpF: {
+                ByteCodes relation = byteCodesCache[instructions[pc++]];
+                int baseA = frameBaseFor(instructions[pc++]) + instructions[pc++];
+                leftType = runtimeTypeCache[stack[baseA]];
+                leftValue = stack[baseA + 1];
+                rightType = runtimeTypeCache[instructions[pc++]];
+                rightValue = instructions[pc++];
+                int target = instructions[pc++];
+
+                if(!compare(relation, leftType, leftValue, rightType, rightValue)) {
+                    pc = target;
+                }
+            }
+                break;
+
+            case TailCall:
+                tailCall(instructions[pc++]);
+                leftValue = instructions[pc++];
+                pc = leftValue;
+                if(jit != null) {
+                    this.pc = leftValue;
+                    jit.arrive(leftValue);
+                    pc = this.pc;
+                }
+                break;
+
+            case CallPrep:
+                push(RuntimeType.iInteger.ordinal());  // room for the return value
+                push(-1);
+                push(RuntimeType.iInteger.ordinal());  // return address
+                push(instructions[pc++]);
+                push(frameBase);                       // Enter
+                frameBase = sp;
                 break;
 
             default:
                 break;
             }
-            trace.postInstruction(code, stack, frameBase);
+
+            if(oneOnly) {
+                this.pc = pc;
+                return true;
+            }
         }
-        trace.postProgram(code, stack, frameBase);
-        return stack.size();
     }
 
-    private String getString(Integer location) {
+    private String getString(int location) {
+        String pooled = program.stringAt(location);
+        if(pooled != null) {
+            return pooled;
+        }
         StringBuilder sb = new StringBuilder();
         while(code.getByte(location) != 0) {
             sb.append((char)code.getByte(location++));
@@ -453,47 +542,179 @@ public class AbsMach {
         return sb.toString();
     }
 
+    //------------------------------------------------------------------------------
+    // Shared with the code the Jit generates
+
+    void print(int type, int value) {
+        switch(runtimeTypeCache[type]) {
+        case iInteger:
+            output.print(value);
+            break;
+        case iBoolean:
+            output.print(value == 1);
+            break;
+        case iString:
+            output.print(getString(value));
+            break;
+        default:
+            System.err.println("don't now how to print type " + runtimeTypeCache[type]);
+            break;
+        }
+        output.print(' ');
+    }
+
+    /**
+     * Compare the strings at two addresses.  The compiler pools each literal once,
+     * so equal addresses mean the same pooled string and compare equal without
+     * looking at it; strings at different addresses are compared in full.
+     */
+    int compareStrings(int left, int right) {
+        return left == right ? 0 : getString(left).compareTo(getString(right));
+    }
+
+    void printLine() {
+        output.println();
+    }
+
+    /**
+     * Return from a function: hand the return value to the caller, drop the
+     * function's frame, and set pc to the return address.
+     */
+    void leave() {
+        int previousFrameBase = stack[frameBase - 1];
+        stack[previousFrameBase - 4] = returnValue;
+        stack[previousFrameBase - 5] = returnType;
+        int returnAddress = stack[previousFrameBase - 2];
+
+        sp = frameBase;
+        frameBase = pop();
+
+        pc = program.indexOf(returnAddress);
+    }
+
+    /**
+     * Call again from the current call's frame: the top count slots of the stack
+     * become the arguments in place of the current ones, and everything above
+     * them is dropped.  The return slot and return address are kept.
+     */
+    void tailCall(int count) {
+        int argumentBase = stack[frameBase - 1];
+        System.arraycopy(stack, sp - count, stack, argumentBase, count);
+        sp = argumentBase + count;
+        frameBase = argumentBase;
+    }
+
+    boolean enter(int target) {
+        return jit.enter(target);
+    }
+
     public static void main(String[] args) throws Exception {
-        if(args.length != 1 && args.length != 2 && args.length != 3) {
+        if(args.length < 1) {
             System.err.println("program needs to be called with a statement language " +
                                "object file.");
             return;
         }
 
         Trace tracer = new EmptyTrace();
+        Boolean mapped = false;
+        int jitThreshold = defaultJitThreshold;
+        int bufferSize = Output.defaultBufferSize;
+        Output.Policy policy = Output.Policy.Full;
+        Boolean disassemble = false;
+        PrintStream disAsmOut = System.out;
         int fileArg = 0;
+        CommandLine line = new CommandLine(args, usage, "-jit", "-buffer", "-flush");
 
-        if(args.length == 2 || args.length == 3) {
-            switch(args[0]) {
+        // Everything before the last argument is an option.
+        while(fileArg < args.length - 1) {
+            if(!line.hasValue(fileArg)) {
+                return;
+            }
+            switch(args[fileArg]) {
             case "-print":
                 tracer = new PrintTrace(System.out);
-                fileArg = 1;
+                // The trace has to see the program's output as it happens.
+                bufferSize = 0;
+                fileArg += 1;
                 break;
             case "-dump":
-                tracer = new PrintTrace(new PrintStream(new File(args[1])));
-                fileArg = 2;
+                tracer = new PrintTrace(new PrintStream(new File(args[fileArg + 1])));
+                fileArg += 2;
+                break;
+            case "-disasm":
+                disassemble = true;
+                fileArg += 1;
+                if(fileArg == args.length - 2) {
+                    disAsmOut = new PrintStream(new File(args[fileArg]));
+                    fileArg += 1;
+                }
+                break;
+            case "-count":
+                tracer = new CountTrace(System.err);
+                fileArg += 1;
                 break;
-            case "-disasm": {
-                DisAsm disAsm = null;
-                if(args.length == 2) {
-                    disAsm = new DisAsm(args[1], System.out);
+            case "-mmap":
+                mapped = true;
+                fileArg += 1;
+                break;
+            case "-jit":
+                Integer threshold = line.count(fileArg + 1, 0);
+                if(threshold == null) {
+                    return;
                 }
-                else if(args.length == 3) {
-                    PrintStream out = new PrintStream(new File(args[1]));
-                    disAsm = new DisAsm(args[2], out);
+                jitThreshold = threshold;
+                fileArg += 2;
+                break;
+            case "-nojit":
+                jitThreshold = 0;
+                fileArg += 1;
+                break;
+            case "-buffer":
+                Integer size = line.count(fileArg + 1, 0);
+                if(size == null) {
+                    return;
                 }
-                disAsm.go();
-                return;
-            }
+                bufferSize = size;
+                fileArg += 2;
+                break;
+            case "-flush":
+                policy = line.policy(fileArg + 1);
+                if(policy == null) {
+                    return;
+                }
+                fileArg += 2;
+                break;
             default:
-                fileArg = 1;
+                fileArg += 1;
                 break;
             }
         }
 
+        if(disassemble) {
+            DisAsm disAsm = new DisAsm(args[fileArg], disAsmOut, mapped);
+            disAsm.go();
+            return;
+        }
+
+        Output output = new Output(System.out, bufferSize, policy);
+
         try {
-            AbsMach am = new AbsMach(args[fileArg]);
-            am.go(tracer);
+            // Major version 1 object files hold register code.
+            CodeBuffer code = open(args[fileArg], mapped);
+            if(code.size() > 5 && code.getByte(5) == 1) {
+                if(tracer instanceof PrintTrace) {
+                    throw new RuntimeError("cannot trace register code");
+                }
+                RegMach rm = new RegMach(code, args[fileArg]);
+                rm.setOutput(output);
+                rm.go(tracer);
+            }
+            else {
+                AbsMach am = new AbsMach(code, args[fileArg]);
+                am.setJitThreshold(jitThreshold);
+                am.setOutput(output);
+                am.go(tracer);
+            }
         }
         catch(RuntimeError err) {
             System.err.println("The program doesn't mean what you think it means: " +
@@ -502,15 +723,122 @@ public class AbsMach {
 
     }
 
+    private static final String usage = "usage: am [options] file.o";
+
     // ------------------------------------------------------------------------------
 
+    private static CodeBuffer open(String fileName, Boolean mapped) {
+        if(mapped) {
+            return CodeBuffer.map(fileName);
+        }
+        CodeBuffer code = new CodeBuffer();
+        code.readFrom(fileName);
+        return code;
+    }
+
+    private void push(int value) {
+        if(sp == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[sp++] = value;
+    }
+
+    private int pop() {
+        return stack[--sp];
+    }
+
+    /**
+     * Make sure there is room for count more slots on top of the stack.
+     */
+    void ensureCapacity(int count) {
+        if(sp + count > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + count));
+        }
+    }
+
+    /**
+     * A read-only window onto the operand stack for the Trace hooks.  It always looks
+     * at the current array, so it stays valid when the stack grows.
+     */
+    private class View implements StackView {
+        public int size() {
+            return sp;
+        }
+
+        public int elementAt(int index) {
+            if(index >= sp) {
+                throw new ArrayIndexOutOfBoundsException(index);
+            }
+            return stack[index];
+        }
+    }
+
+    /**
+     * Follow the saved frame links back frames scopes from the current one.
+     */
+    private int frameBaseFor(int frames) {
+        int answer = frameBase;
+        while(frames > 0) {
+            answer = stack[answer - 1];
+            frames--;
+        }
+        return answer;
+    }
+
+    /**
+     * The relational byte codes.  Two strings compare as strings; otherwise both
+     * sides have to be integers.
+     */
+    private Boolean compare(ByteCodes relation, RuntimeType leftType, int leftValue,
+                           RuntimeType rightType, int rightValue) {
+        if(leftType == RuntimeType.iString &&
+           rightType == RuntimeType.iString) {
+            int order = compareStrings(leftValue, rightValue);
+            switch(relation) {
+            case Lt:
+                return order < 0;
+            case Lte:
+                return order <= 0;
+            case Eq:
+                return order == 0;
+            case Neq:
+                return order != 0;
+            case Gte:
+                return order >= 0;
+            default:
+                return order > 0;
+            }
+        }
+
+        switch(relation) {
+        case Lt:
+            expectTypes(RuntimeType.iInteger, leftType, rightType, "'<'");
+            return leftValue < rightValue;
+        case Lte:
+            expectTypes(RuntimeType.iInteger, leftType, rightType, "'<='");
+            return leftValue <= rightValue;
+        case Eq:
+            expectTypes(RuntimeType.iInteger, leftType, rightType, "'?='");
+            return leftValue == rightValue;
+        case Neq:
+            expectTypes(RuntimeType.iInteger, leftType, rightType, "'!='");
+            return leftValue != rightValue;
+        case Gte:
+            expectTypes(RuntimeType.iInteger, leftType, rightType, "'>='");
+            return leftValue >= rightValue;
+        default:
+            expectTypes(RuntimeType.iInteger, leftType, rightType, "'>'");
+            return leftValue > rightValue;
+        }
+    }
+
     private void pushBoolean(Boolean result) {
-        stack.push(RuntimeType.iBoolean.ordinal());
+        push(RuntimeType.iBoolean.ordinal());
         if(result) {
-            stack.push(1);
+            push(1);
         }
         else {
-            stack.push(0);
+            push(0);
         }
     }
 
@@ -533,13 +861,21 @@ public class AbsMach {
     }
 
     private CodeBuffer code;
-    private Stack<Integer> stack;
-    private RuntimeType leftType;
-    private Integer leftValue;
-    private RuntimeType rightType;
-    private Integer rightValue;
+    private Output output = new Output();
+    private Program program;
+    private int[] instructions;
+    // The Jit's code works on these directly
+    int[] stack;
+    int sp;
+    int frameBase;
+    int pc;
+    int returnValue;
+    int returnType;
+
+    private StackView view;
     private RuntimeType[] runtimeTypeCache;
     private ByteCodes[] byteCodesCache;
-    private Integer frameBase;
+    private Jit jit;
+    private int jitThreshold = defaultJitThreshold;
     private Integer startHere;
 }
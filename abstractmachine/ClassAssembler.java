@@ -0,0 +1,367 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * <p>A minimal class file writer for the Jit.  It builds one class: a constant pool,
+ * one interface, and methods whose code is written an opcode at a time, with labels
+ * for branches.</p>
+ *
+ * <p>It knows only what the Jit needs.  There are no fields, exception tables, or
+ * debugging attributes, and the class file version is 49, old enough that the JVM
+ * verifies it by type inference and no stack map frames have to be computed.</p>
+ */
+class ClassAssembler {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // The opcodes the Jit uses
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int IALOAD = 0x2e;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3a;
+    static final int IASTORE = 0x4f;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IREM = 0x70;
+    static final int IAND = 0x7e;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int IINC = 0x84;
+    static final int I2D = 0x87;
+    static final int D2I = 0x8e;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int LOOKUPSWITCH = 0xab;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ARRAYLENGTH = 0xbe;
+
+    ClassAssembler(String name, String superName, String interfaceName) {
+        pool = new ByteArrayOutputStream();
+        poolOut = new DataOutputStream(pool);
+        poolIndexes = new HashMap<String, Integer>();
+        poolCount = 1;
+        methods = new Vector<Code>();
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        anInterface = classRef(interfaceName);
+    }
+
+    /**
+     * Start a method.  Its code is whatever is then written to the answer.
+     */
+    Code method(int access, String name, String descriptor, int maxStack, int maxLocals) {
+        Code code = new Code(access, utf8(name), utf8(descriptor), maxStack, maxLocals);
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int codeName = utf8("Code");
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(anInterface);
+            out.writeShort(0);  // fields
+            out.writeShort(methods.size());
+            for(Code code : methods) {
+                byte[] body = code.finish();
+                out.writeShort(code.access);
+                out.writeShort(code.name);
+                out.writeShort(code.descriptor);
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + body.length);
+                out.writeShort(code.maxStack);
+                out.writeShort(code.maxLocals);
+                out.writeInt(body.length);
+                out.write(body);
+                out.writeShort(0);  // exception table
+                out.writeShort(0);  // attributes
+            }
+            out.writeShort(0);  // class attributes
+        }
+        catch(IOException e) {
+            throw new Error("in ClassAssembler.toByteArray: " + e.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    //------------------------------------------------------------------------------
+    // The constant pool; each entry is added once
+
+    int utf8(String text) {
+        return entry("U" + text, 1, out -> out.writeUTF(text));
+    }
+
+    int classRef(String name) {
+        int nameIndex = utf8(name);
+        return entry("C" + name, 7, out -> out.writeShort(nameIndex));
+    }
+
+    int integer(int value) {
+        return entry("I" + value, 3, out -> out.writeInt(value));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = entry("N" + name + " " + descriptor, 12, out -> {
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+        return entry(tag + owner + "." + name + " " + descriptor, tag, out -> {
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int entry(String key, int tag, Body body) {
+        Integer index = poolIndexes.get(key);
+        if(index == null) {
+            try {
+                poolOut.writeByte(tag);
+                body.write(poolOut);
+            }
+            catch(IOException e) {
+                throw new Error("in ClassAssembler.entry: " + e.getMessage());
+            }
+            index = poolCount++;
+            poolIndexes.put(key, index);
+        }
+        return index;
+    }
+
+    //------------------------------------------------------------------------------
+
+    /**
+     * A place in a method's code that branches can name before it is placed.
+     */
+    static class Label {
+        private int position = -1;
+    }
+
+    /**
+     * The code of one method.  Branches to labels are patched in finish(); a branch
+     * further than a 16-bit offset reaches makes it throw IllegalStateException.
+     */
+    class Code {
+        private Code(int access, int name, int descriptor, int maxStack, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+            bytes = new ByteArrayOutputStream();
+            branches = new Vector<int[]>();
+            targets = new Vector<Label>();
+        }
+
+        void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        void u1(int value) {
+            bytes.write(value);
+        }
+
+        void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        void s4(int value) {
+            u2(value >>> 16);
+            u2(value & 0xffff);
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        /**
+         * Push an int constant using the shortest instruction that holds it.
+         */
+        void iconst(int value) {
+            if(value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            }
+            else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                u1(value);
+            }
+            else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                u2(value);
+            }
+            else {
+                op(LDC_W);
+                u2(integer(value));
+            }
+        }
+
+        void local(int opcode, int index) {
+            op(opcode);
+            u1(index);
+        }
+
+        void iinc(int index, int delta) {
+            op(IINC);
+            u1(index);
+            u1(delta);
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            op(opcode);
+            u2(fieldRef(owner, name, descriptor));
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            op(opcode);
+            u2(methodRef(owner, name, descriptor));
+        }
+
+        void jump(int opcode, Label target) {
+            branches.add(new int[] { size(), size() + 1, 2 });
+            targets.add(target);
+            op(opcode);
+            u2(0);
+        }
+
+        void place(Label label) {
+            label.position = size();
+        }
+
+        /**
+         * Jump on the int on top of the operand stack.  keys must be sorted.
+         */
+        void lookupSwitch(Label otherwise, int[] keys, Label[] labels) {
+            int at = size();
+            op(LOOKUPSWITCH);
+            while(size() % 4 != 0) {
+                u1(0);
+            }
+            branches.add(new int[] { at, size(), 4 });
+            targets.add(otherwise);
+            s4(0);
+            s4(keys.length);
+            for(int i = 0; i < keys.length; i++) {
+                s4(keys[i]);
+                branches.add(new int[] { at, size(), 4 });
+                targets.add(labels[i]);
+                s4(0);
+            }
+        }
+
+        private byte[] finish() {
+            byte[] code = bytes.toByteArray();
+            if(code.length > 0xffff) {
+                throw new IllegalStateException("method code is too large");
+            }
+            for(int i = 0; i < branches.size(); i++) {
+                int[] branch = branches.get(i);
+                if(targets.get(i).position < 0) {
+                    throw new IllegalStateException("branch to a label never placed");
+                }
+                int offset = targets.get(i).position - branch[0];
+                int at = branch[1];
+                if(branch[2] == 2) {
+                    if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new IllegalStateException("branch is out of range");
+                    }
+                }
+                else {
+                    code[at++] = (byte)(offset >> 24);
+                    code[at++] = (byte)(offset >> 16);
+                }
+                code[at++] = (byte)(offset >> 8);
+                code[at] = (byte)offset;
+            }
+            return code;
+        }
+
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final int maxStack;
+        private final int maxLocals;
+        private ByteArrayOutputStream bytes;
+        // Each branch is the position of its instruction, where its offset goes, and
+        // the offset's size in bytes.
+        private Vector<int[]> branches;
+        private Vector<Label> targets;
+    }
+
+    private ByteArrayOutputStream pool;
+    private DataOutputStream poolOut;
+    private Map<String, Integer> poolIndexes;
+    private int poolCount;
+    private Vector<Code> methods;
+    private int thisClass;
+    private int superClass;
+    private int anInterface;
+}
@@ -0,0 +1,47 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import java.io.PrintStream;
+
+import common.CodeBuffer;
+
+/**
+ * Count the instructions a program executes and report the total when it halts.
+ * Because it is a real trace, it also makes the machine use its tracing loop, which
+ * is handy for measuring what tracing costs.
+ */
+public class CountTrace extends EmptyTrace {
+    public CountTrace(PrintStream out) {
+        this.out = out;
+        count = 0;
+    }
+
+    public void preInstruction(CodeBuffer code, StackView stack, int frame) {
+        count++;
+    }
+
+    public void postProgram(CodeBuffer code, StackView stack, int frame) {
+        out.println("instructions executed: " + count);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    private PrintStream out;
+    private long count;
+}
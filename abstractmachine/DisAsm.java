@@ -28,9 +28,18 @@ import common.RuntimeType;
 public class DisAsm {
 
     public DisAsm(String fileName, PrintStream out) {
-        code = new CodeBuffer();
+        this(fileName, out, false);
+    }
+
+    public DisAsm(String fileName, PrintStream out, Boolean mapped) {
+        if(mapped) {
+            code = CodeBuffer.map(fileName);
+        }
+        else {
+            code = new CodeBuffer();
+            code.readFrom(fileName);
+        }
         this.fileName = fileName;
-        code.readFrom(fileName);
         this.out = out;
         runtimeTypeCache = RuntimeType.values();
         byteCodesCache = ByteCodes.values();
@@ -95,10 +104,14 @@ public class DisAsm {
             case Halt:
                 done = true;
                 break;
+            default:
+                operandDStr = describeOperands(code, position, opCode);
+                break;
             }
 
             String typeXStr = hasOperandType ? String.format("%02x", type) : "";
             String operandXStr = hasOperand ? String.format("%08x", operand) : "";
+            code.setFinger(position + 1 + opCode.getOperandBytes());
             out.println(String.format("%04x:  %02x %2s %8s   %-6s %-8s %-8s",
                                     position,
                                     opCode.ordinal(),
@@ -112,6 +125,52 @@ public class DisAsm {
         return;
     }
 
+    /**
+     * Spell out the operands of the instruction at position using the byte code's
+     * operand layout.  Used for the byte codes that don't have a format of their own.
+     */
+    public static String describeOperands(CodeBuffer code, int position,
+                                          ByteCodes opCode) {
+        StringBuilder sb = new StringBuilder();
+        int at = position + 1;
+        for(char kind : opCode.getOperands().toCharArray()) {
+            if(sb.length() > 0) {
+                sb.append(' ');
+            }
+            switch(kind) {
+            case 't':
+                sb.append(RuntimeType.values()[code.getByte(at)].name());
+                at += 1;
+                break;
+            case 'r':
+                sb.append(ByteCodes.values()[code.getByte(at)].name().toLowerCase());
+                at += 1;
+                break;
+            case 'b':
+                sb.append(code.getByte(at));
+                at += 1;
+                break;
+            case 'h':
+                sb.append((short)code.getShort(at));
+                at += 2;
+                break;
+            case 'j':
+                sb.append(String.format("0x%x", position + (short)code.getShort(at)));
+                at += 2;
+                break;
+            case 'a':
+                sb.append(String.format("0x%x", code.getInteger(at)));
+                at += 4;
+                break;
+            default:
+                sb.append(code.getInteger(at));
+                at += 4;
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
     public void dumpStringPool() {
         while(code.getFinger() < code.size()) {
             // There's more stuff past the halt op code.  Assume it's a string pool.
@@ -141,6 +200,10 @@ public class DisAsm {
 
         Integer majorVer = code.readByte();
         Integer minorVer = code.readByte();
+        if(majorVer != 0) {
+            throw new RuntimeError("can only disassemble stack code, not version " +
+                                   majorVer);
+        }
 
         Integer entry = code.readInteger();
 
@@ -15,23 +15,22 @@
   statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
 */
 
-import java.util.Stack;
 import common.CodeBuffer;
 
 public class EmptyTrace implements Trace {
-    public void preProgram(CodeBuffer code, Stack<Integer> stack, Integer frame) {
+    public void preProgram(CodeBuffer code, StackView stack, int frame) {
         return;
     }
 
-    public void preInstruction(CodeBuffer code, Stack<Integer> stack, Integer frame) {
+    public void preInstruction(CodeBuffer code, StackView stack, int frame) {
         return;
     }
 
-    public void postInstruction(CodeBuffer code, Stack<Integer> stack, Integer frame) {
+    public void postInstruction(CodeBuffer code, StackView stack, int frame) {
         return;
     }
 
-    public void postProgram(CodeBuffer code, Stack<Integer> stack, Integer frame) {
+    public void postProgram(CodeBuffer code, StackView stack, int frame) {
         return;
     }
 }
@@ -0,0 +1,835 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.Vector;
+
+import common.ByteCodes;
+import common.RuntimeType;
+
+/**
+ * <p>The second tier of AbsMach.  The interpreter reports each call and each loop
+ * back edge here, counted by the instruction they go to.  Once a count reaches the
+ * threshold, the unit holding that instruction is translated into JVM byte codes, in
+ * a hidden class HotSpot can compile like any other, and from then on calls and back
+ * edges into the unit run the translation.</p>
+ *
+ * <p>A unit is a function: the code from its first instruction through its Return.
+ * The main program, ending in Halt, is a unit too.  The translation works on the
+ * machine's own stack, so at any instruction it can give the rest back to the
+ * interpreter: it stores sp, frameBase, and pc and returns.  It does that when a
+ * type check fails or a divisor is zero, so the interpreter produces the usual
+ * error, and for anything it doesn't translate.</p>
+ *
+ * <p>Translated units call each other through enter() on the JVM stack.  Past
+ * maxDepth nested calls the callee is left to the interpreter, which unwinds every
+ * translated caller, so deep recursion can't overflow the JVM stack.</p>
+ */
+class Jit {
+    private static final int maxDepth = 500;
+    private static final String vmClass = "AbsMach";
+
+    Jit(AbsMach vm, int[] instructions, int threshold) {
+        this.vm = vm;
+        this.instructions = instructions;
+        this.threshold = threshold;
+        counts = new int[instructions.length];
+        translations = new JitCode[instructions.length];
+        refused = new boolean[instructions.length];
+        byteCodesCache = ByteCodes.values();
+
+        // Every unit ends in Return or Halt.
+        unitStart = new int[instructions.length];
+        int start = 0;
+        int at = 0;
+        while(at < instructions.length) {
+            ByteCodes opCode = byteCodesCache[instructions[at]];
+            int next = at + 1 + opCode.getOperands().length();
+            for(int i = at; i < next; i++) {
+                unitStart[i] = start;
+            }
+            if(opCode == ByteCodes.Return || opCode == ByteCodes.Halt) {
+                start = next;
+            }
+            at = next;
+        }
+    }
+
+    /**
+     * The interpreter took a call or a back edge to target and left pc there.  Count
+     * it, and run the translation if there is one.
+     */
+    void arrive(int target) {
+        JitCode unit = hot(target);
+        if(unit != null) {
+            unit.run(vm);
+        }
+    }
+
+    /**
+     * Translated code calls target, with pc set to it.  Returns false if the call
+     * has to be left to the interpreter.
+     */
+    boolean enter(int target) {
+        JitCode unit = hot(target);
+        if(unit == null || depth == maxDepth) {
+            return false;
+        }
+        depth++;
+        boolean answer = unit.run(vm);
+        depth--;
+        return answer;
+    }
+
+    private JitCode hot(int target) {
+        int start = unitStart[target];
+        if(translations[start] == null && !refused[start] && ++counts[target] >= threshold) {
+            translations[start] = translate(start);
+            refused[start] = translations[start] == null;
+        }
+        return translations[start];
+    }
+
+    //------------------------------------------------------------------------------
+
+    /**
+     * Translate the unit starting at start, or return null if it can't be.
+     */
+    private JitCode translate(int start) {
+        end = start;
+        ByteCodes opCode;
+        do {
+            opCode = byteCodesCache[instructions[end]];
+            end += 1 + opCode.getOperands().length();
+        } while(opCode != ByteCodes.Return && opCode != ByteCodes.Halt);
+        this.start = start;
+
+        // Places that can be reached other than by falling into them.  Entries are
+        // where the translation may be started: the unit's first instruction and the
+        // tops of its loops.
+        TreeSet<Integer> entries = new TreeSet<Integer>();
+        entries.add(start);
+        jumpTargets = new TreeSet<Integer>();
+        jumpTargets.add(start);
+        for(int at = start; at < end; at = next(at)) {
+            int target = branchTarget(at);
+            if(target >= start && target < end) {
+                jumpTargets.add(target);
+                if(target <= at) {
+                    entries.add(target);
+                }
+            }
+        }
+
+        try {
+            ClassAssembler assembler = new ClassAssembler("StmntJit", "java/lang/Object",
+                                                          "JitCode");
+            ClassAssembler.Code init = assembler.method(ClassAssembler.ACC_PUBLIC,
+                                                        "<init>", "()V", 1, 1);
+            init.local(ClassAssembler.ALOAD, 0);
+            init.invoke(ClassAssembler.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+            init.op(ClassAssembler.RETURN);
+
+            code = assembler.method(ClassAssembler.ACC_PUBLIC, "run",
+                                    "(L" + vmClass + ";)Z", 8, 8);
+            emitUnit(entries);
+
+            byte[] bytes = assembler.toByteArray();
+            MethodHandles.Lookup lookup =
+                MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (JitCode)lookup.lookupClass().getDeclaredConstructor().newInstance();
+        }
+        catch(IllegalStateException | ReflectiveOperationException | LinkageError e) {
+            // Too big or otherwise not translatable; the interpreter keeps the unit.
+            return null;
+        }
+        finally {
+            code = null;
+            labels = null;
+            exits = null;
+        }
+    }
+
+    // Locals of the translated run method
+    private static final int vmLocal = 1;
+    private static final int stackLocal = 2;
+    private static final int spLocal = 3;
+    private static final int frameLocal = 4;
+    private static final int tempA = 5;
+    private static final int tempB = 6;
+    private static final int tempX = 7;
+
+    private void emitUnit(TreeSet<Integer> entries) {
+        labels = new HashMap<Integer, ClassAssembler.Label>();
+        exits = new HashMap<Integer, ClassAssembler.Label>();
+        giveUp = new ClassAssembler.Label();
+        known = new Vector<Integer>();
+
+        // Pick up the machine's state and go to the entry pc names.
+        reload();
+        code.local(ClassAssembler.ALOAD, vmLocal);
+        code.field(ClassAssembler.GETFIELD, vmClass, "pc", "I");
+        int[] keys = new int[entries.size()];
+        ClassAssembler.Label[] targets = new ClassAssembler.Label[entries.size()];
+        int i = 0;
+        for(Integer entry : entries) {
+            keys[i] = entry;
+            targets[i++] = label(entry);
+        }
+        code.lookupSwitch(giveUp, keys, targets);
+
+        for(int at = start; at < end; at = next(at)) {
+            if(jumpTargets.contains(at)) {
+                code.place(labels.get(at));
+                known.clear();
+            }
+            emitInstruction(at);
+        }
+
+        // The ways back to the interpreter: with pc at an instruction, or with
+        // everything already stored.
+        for(Map.Entry<Integer, ClassAssembler.Label> exit : exits.entrySet()) {
+            code.place(exit.getValue());
+            store();
+            code.local(ClassAssembler.ALOAD, vmLocal);
+            code.iconst(exit.getKey());
+            code.field(ClassAssembler.PUTFIELD, vmClass, "pc", "I");
+            code.iconst(0);
+            code.op(ClassAssembler.IRETURN);
+        }
+        code.place(giveUp);
+        code.iconst(0);
+        code.op(ClassAssembler.IRETURN);
+    }
+
+    private void emitInstruction(int at) {
+        final int integer = RuntimeType.iInteger.ordinal();
+        final int bool = RuntimeType.iBoolean.ordinal();
+        final int string = RuntimeType.iString.ordinal();
+        ByteCodes opCode = byteCodesCache[instructions[at]];
+        int operand = at + 1;
+
+        // A typed form is its checked form with the guards already known to pass.
+        ByteCodes checked = checkedForm(opCode);
+        if(checked != null) {
+            int operands = checked == ByteCodes.Not ? 1 : 2;
+            int type = checked == ByteCodes.And || checked == ByteCodes.Or ||
+                checked == ByteCodes.Not ? bool : integer;
+            popKnown(operands);
+            for(int i = 0; i < operands; i++) {
+                pushKnown(type);
+            }
+            opCode = checked;
+        }
+
+        switch(opCode) {
+        case Halt:
+            store();
+            setPc(at);
+            code.iconst(1);
+            code.op(ClassAssembler.IRETURN);
+            break;
+        case Push:
+            ensure(2);
+            storeSlot(0, instructions[operand]);
+            storeSlot(1, instructions[operand + 1]);
+            moveSp(2);
+            pushKnown(instructions[operand]);
+            break;
+        case Pop:
+            moveSp(-2);
+            popKnown(1);
+            break;
+        case Add:
+        case Sub:
+        case Mul:
+        case Div:
+        case Rem:
+        case Pow:
+            guard(-4, integer, at);
+            guard(-2, integer, at);
+            if(opCode == ByteCodes.Div || opCode == ByteCodes.Rem) {
+                loadSlot(-1);
+                code.jump(ClassAssembler.IFEQ, exit(at));
+            }
+            slot(-3);
+            loadSlot(-3);
+            if(opCode == ByteCodes.Pow) {
+                code.op(ClassAssembler.I2D);
+                loadSlot(-1);
+                code.op(ClassAssembler.I2D);
+                code.invoke(ClassAssembler.INVOKESTATIC, "java/lang/Math", "pow", "(DD)D");
+                code.op(ClassAssembler.D2I);
+            }
+            else {
+                loadSlot(-1);
+                code.op(arithmetic(opCode));
+            }
+            code.op(ClassAssembler.IASTORE);
+            moveSp(-2);
+            popKnown(2);
+            pushKnown(integer);
+            break;
+        case Lt:
+        case Lte:
+        case Eq:
+        case Neq:
+        case Gte:
+        case Gt: {
+            ClassAssembler.Label integers = new ClassAssembler.Label();
+            ClassAssembler.Label compare = new ClassAssembler.Label();
+            ClassAssembler.Label isFalse = new ClassAssembler.Label();
+            ClassAssembler.Label done = new ClassAssembler.Label();
+            boolean integersOnly = known(-4) == integer || known(-2) == integer;
+            if(!integersOnly) {
+                // Two strings compare their order with 0.
+                loadSlot(-4);
+                code.iconst(string);
+                code.jump(ClassAssembler.IF_ICMPNE, integers);
+                guard(-2, string, at);
+                storeSlot(-4, bool);
+                slot(-3);
+                code.local(ClassAssembler.ALOAD, vmLocal);
+                loadSlot(-3);
+                loadSlot(-1);
+                code.invoke(ClassAssembler.INVOKEVIRTUAL, vmClass, "compareStrings",
+                            "(II)I");
+                code.iconst(0);
+                code.jump(ClassAssembler.GOTO, compare);
+                code.place(integers);
+            }
+            guard(-4, integer, at);
+            guard(-2, integer, at);
+            storeSlot(-4, bool);
+            slot(-3);
+            loadSlot(-3);
+            loadSlot(-1);
+            code.place(compare);
+            code.jump(negated(opCode), isFalse);
+            code.iconst(1);
+            code.jump(ClassAssembler.GOTO, done);
+            code.place(isFalse);
+            code.iconst(0);
+            code.place(done);
+            code.op(ClassAssembler.IASTORE);
+            moveSp(-2);
+            popKnown(2);
+            pushKnown(bool);
+        }
+            break;
+        case And:
+        case Or:
+            guard(-4, bool, at);
+            guard(-2, bool, at);
+            slot(-3);
+            loadSlot(-3);
+            loadSlot(-1);
+            code.op(opCode == ByteCodes.And ? ClassAssembler.IAND : ClassAssembler.IOR);
+            code.op(ClassAssembler.IASTORE);
+            moveSp(-2);
+            popKnown(2);
+            pushKnown(bool);
+            break;
+        case Not:
+            guard(-2, bool, at);
+            slot(-1);
+            loadSlot(-1);
+            code.iconst(1);
+            code.op(ClassAssembler.IXOR);
+            code.op(ClassAssembler.IASTORE);
+            popKnown(1);
+            pushKnown(bool);
+            break;
+        case Print:
+            moveSp(-2);
+            code.local(ClassAssembler.ALOAD, vmLocal);
+            loadSlot(0);
+            loadSlot(1);
+            code.invoke(ClassAssembler.INVOKEVIRTUAL, vmClass, "print", "(II)V");
+            popKnown(1);
+            break;
+        case PrtLn:
+            code.local(ClassAssembler.ALOAD, vmLocal);
+            code.invoke(ClassAssembler.INVOKEVIRTUAL, vmClass, "printLine", "()V");
+            break;
+        case Move:
+            frameBase(instructions[operand], instructions[operand + 1], tempA);
+            slotAt(tempA, 1);
+            loadSlot(-1);
+            code.op(ClassAssembler.IASTORE);
+            slotAt(tempA, 0);
+            loadSlot(-2);
+            code.op(ClassAssembler.IASTORE);
+            moveSp(-2);
+            popKnown(1);
+            break;
+        case Copy:
+            ensure(2);
+            frameBase(instructions[operand], instructions[operand + 1], tempA);
+            slot(0);
+            slotAt(tempA, 0);
+            code.op(ClassAssembler.IALOAD);
+            code.op(ClassAssembler.IASTORE);
+            slot(1);
+            slotAt(tempA, 1);
+            code.op(ClassAssembler.IALOAD);
+            code.op(ClassAssembler.IASTORE);
+            moveSp(2);
+            pushKnown(-1);
+            break;
+        case Jmp:
+            code.jump(ClassAssembler.GOTO, branch(instructions[operand]));
+            break;
+        case JmpT:
+        case JmpF:
+            guard(-2, bool, at);
+            moveSp(-2);
+            loadSlot(1);
+            code.jump(opCode == ByteCodes.JmpT ? ClassAssembler.IFNE : ClassAssembler.IFEQ,
+                      branch(instructions[operand]));
+            popKnown(1);
+            break;
+        case Enter:
+            ensure(1);
+            slot(0);
+            code.local(ClassAssembler.ILOAD, frameLocal);
+            code.op(ClassAssembler.IASTORE);
+            moveSp(1);
+            code.local(ClassAssembler.ILOAD, spLocal);
+            code.local(ClassAssembler.ISTORE, frameLocal);
+            known.clear();
+            break;
+        case Exit:
+            code.local(ClassAssembler.ILOAD, frameLocal);
+            code.local(ClassAssembler.ISTORE, spLocal);
+            moveSp(-1);
+            loadSlot(0);
+            code.local(ClassAssembler.ISTORE, frameLocal);
+            known.clear();
+            break;
+        case Locals:
+            ensure(instructions[operand]);
+            code.local(ClassAssembler.ALOAD, stackLocal);
+            code.local(ClassAssembler.ILOAD, spLocal);
+            code.local(ClassAssembler.ILOAD, spLocal);
+            code.iconst(instructions[operand]);
+            code.op(ClassAssembler.IADD);
+            code.iconst(0);
+            code.invoke(ClassAssembler.INVOKESTATIC, "java/util/Arrays", "fill", "([IIII)V");
+            moveSp(instructions[operand]);
+            known.clear();
+            break;
+        case Call: {
+            int target = instructions[operand];
+            store();
+            setPc(target);
+            code.local(ClassAssembler.ALOAD, vmLocal);
+            code.iconst(target);
+            code.invoke(ClassAssembler.INVOKEVIRTUAL, vmClass, "enter", "(I)Z");
+            code.jump(ClassAssembler.IFEQ, giveUp);
+            // Carry on here only if the callee came back to the next instruction.
+            code.local(ClassAssembler.ALOAD, vmLocal);
+            code.field(ClassAssembler.GETFIELD, vmClass, "pc", "I");
+            code.iconst(next(at));
+            code.jump(ClassAssembler.IF_ICMPNE, giveUp);
+            reload();
+            known.clear();
+        }
+            break;
+        case TailCall: {
+            int target = instructions[operand + 1];
+            store();
+            code.local(ClassAssembler.ALOAD, vmLocal);
+            code.iconst(instructions[operand]);
+            code.invoke(ClassAssembler.INVOKEVIRTUAL, vmClass, "tailCall", "(I)V");
+            if(target >= start && target < end) {
+                // Calling this unit again is just a loop.
+                reload();
+                code.jump(ClassAssembler.GOTO, label(target));
+            }
+            else {
+                // The callee returns to our caller, so whatever it says goes.
+                setPc(target);
+                code.local(ClassAssembler.ALOAD, vmLocal);
+                code.iconst(target);
+                code.invoke(ClassAssembler.INVOKEVIRTUAL, vmClass, "enter", "(I)Z");
+                code.op(ClassAssembler.IRETURN);
+            }
+            known.clear();
+        }
+            break;
+        case Return:
+            store();
+            code.local(ClassAssembler.ALOAD, vmLocal);
+            code.invoke(ClassAssembler.INVOKEVIRTUAL, vmClass, "leave", "()V");
+            code.iconst(1);
+            code.op(ClassAssembler.IRETURN);
+            break;
+        case SetRtn:
+            moveSp(-2);
+            code.local(ClassAssembler.ALOAD, vmLocal);
+            loadSlot(0);
+            code.field(ClassAssembler.PUTFIELD, vmClass, "returnType", "I");
+            code.local(ClassAssembler.ALOAD, vmLocal);
+            loadSlot(1);
+            code.field(ClassAssembler.PUTFIELD, vmClass, "returnValue", "I");
+            popKnown(1);
+            break;
+        case MoveSum:
+            frameBase(instructions[operand], instructions[operand + 1], tempA);
+            frameBase(instructions[operand + 2], instructions[operand + 3], tempB);
+            frameBase(instructions[operand + 4], instructions[operand + 5], tempX);
+            guardAt(tempA, integer, at);
+            guardAt(tempB, integer, at);
+            slotAt(tempX, 1);
+            slotAt(tempA, 1);
+            code.op(ClassAssembler.IALOAD);
+            slotAt(tempB, 1);
+            code.op(ClassAssembler.IALOAD);
+            code.op(ClassAssembler.IADD);
+            code.op(ClassAssembler.IASTORE);
+            slotAt(tempX, 0);
+            code.iconst(integer);
+            code.op(ClassAssembler.IASTORE);
+            break;
+        case CmpJmpF:
+            if(instructions[operand + 3] != integer) {
+                code.jump(ClassAssembler.GOTO, exit(at));
+                break;
+            }
+            frameBase(instructions[operand + 1], instructions[operand + 2], tempA);
+            guardAt(tempA, integer, at);
+            slotAt(tempA, 1);
+            code.op(ClassAssembler.IALOAD);
+            code.iconst(instructions[operand + 4]);
+            code.jump(negated(byteCodesCache[instructions[operand]]),
+                      branch(instructions[operand + 5]));
+            break;
+        case CallPrep:
+            ensure(5);
+            storeSlot(0, integer);
+            storeSlot(1, -1);
+            storeSlot(2, integer);
+            storeSlot(3, instructions[operand]);
+            slot(4);
+            code.local(ClassAssembler.ILOAD, frameLocal);
+            code.op(ClassAssembler.IASTORE);
+            moveSp(5);
+            code.local(ClassAssembler.ILOAD, spLocal);
+            code.local(ClassAssembler.ISTORE, frameLocal);
+            known.clear();
+            break;
+        default:
+            // Not translated; the interpreter runs it and whatever follows.
+            code.jump(ClassAssembler.GOTO, exit(at));
+            known.clear();
+            break;
+        }
+    }
+
+    //------------------------------------------------------------------------------
+
+    /**
+     * Push stack and sp + delta, ready for IALOAD or for a value and IASTORE.
+     */
+    private void slot(int delta) {
+        code.local(ClassAssembler.ALOAD, stackLocal);
+        code.local(ClassAssembler.ILOAD, spLocal);
+        add(delta);
+    }
+
+    private void slotAt(int base, int delta) {
+        code.local(ClassAssembler.ALOAD, stackLocal);
+        code.local(ClassAssembler.ILOAD, base);
+        add(delta);
+    }
+
+    private void loadSlot(int delta) {
+        slot(delta);
+        code.op(ClassAssembler.IALOAD);
+    }
+
+    private void storeSlot(int delta, int value) {
+        slot(delta);
+        code.iconst(value);
+        code.op(ClassAssembler.IASTORE);
+    }
+
+    private void add(int delta) {
+        if(delta != 0) {
+            code.iconst(delta);
+            code.op(ClassAssembler.IADD);
+        }
+    }
+
+    private void moveSp(int delta) {
+        if(delta >= Byte.MIN_VALUE && delta <= Byte.MAX_VALUE) {
+            code.iinc(spLocal, delta);
+        }
+        else {
+            code.local(ClassAssembler.ILOAD, spLocal);
+            add(delta);
+            code.local(ClassAssembler.ISTORE, spLocal);
+        }
+    }
+
+    /**
+     * Put the slot offset words into the frame frames links out into local.
+     */
+    private void frameBase(int frames, int offset, int local) {
+        code.local(ClassAssembler.ILOAD, frameLocal);
+        for(int i = 0; i < frames; i++) {
+            code.local(ClassAssembler.ISTORE, local);
+            slotAt(local, -1);
+            code.op(ClassAssembler.IALOAD);
+        }
+        add(offset);
+        code.local(ClassAssembler.ISTORE, local);
+    }
+
+    /**
+     * Leave for the interpreter at at unless the type of the stack slot at
+     * sp + delta is type.  Types already known from this block need no check.
+     */
+    private void guard(int delta, int type, int at) {
+        if(known(delta) == type) {
+            return;
+        }
+        loadSlot(delta);
+        code.iconst(type);
+        code.jump(ClassAssembler.IF_ICMPNE, exit(at));
+    }
+
+    private void guardAt(int local, int type, int at) {
+        slotAt(local, 0);
+        code.op(ClassAssembler.IALOAD);
+        code.iconst(type);
+        code.jump(ClassAssembler.IF_ICMPNE, exit(at));
+    }
+
+    /**
+     * Make room for count more slots; the machine's stack may be replaced.
+     */
+    private void ensure(int count) {
+        ClassAssembler.Label roomy = new ClassAssembler.Label();
+        code.local(ClassAssembler.ILOAD, spLocal);
+        add(count);
+        code.local(ClassAssembler.ALOAD, stackLocal);
+        code.op(ClassAssembler.ARRAYLENGTH);
+        code.jump(ClassAssembler.IF_ICMPLE, roomy);
+        store();
+        code.local(ClassAssembler.ALOAD, vmLocal);
+        code.iconst(count);
+        code.invoke(ClassAssembler.INVOKEVIRTUAL, vmClass, "ensureCapacity", "(I)V");
+        code.local(ClassAssembler.ALOAD, vmLocal);
+        code.field(ClassAssembler.GETFIELD, vmClass, "stack", "[I");
+        code.local(ClassAssembler.ASTORE, stackLocal);
+        code.place(roomy);
+    }
+
+    private void store() {
+        code.local(ClassAssembler.ALOAD, vmLocal);
+        code.local(ClassAssembler.ILOAD, spLocal);
+        code.field(ClassAssembler.PUTFIELD, vmClass, "sp", "I");
+        code.local(ClassAssembler.ALOAD, vmLocal);
+        code.local(ClassAssembler.ILOAD, frameLocal);
+        code.field(ClassAssembler.PUTFIELD, vmClass, "frameBase", "I");
+    }
+
+    private void reload() {
+        code.local(ClassAssembler.ALOAD, vmLocal);
+        code.field(ClassAssembler.GETFIELD, vmClass, "stack", "[I");
+        code.local(ClassAssembler.ASTORE, stackLocal);
+        code.local(ClassAssembler.ALOAD, vmLocal);
+        code.field(ClassAssembler.GETFIELD, vmClass, "sp", "I");
+        code.local(ClassAssembler.ISTORE, spLocal);
+        code.local(ClassAssembler.ALOAD, vmLocal);
+        code.field(ClassAssembler.GETFIELD, vmClass, "frameBase", "I");
+        code.local(ClassAssembler.ISTORE, frameLocal);
+    }
+
+    private void setPc(int pc) {
+        code.local(ClassAssembler.ALOAD, vmLocal);
+        code.iconst(pc);
+        code.field(ClassAssembler.PUTFIELD, vmClass, "pc", "I");
+    }
+
+    /**
+     * Where a jump to target goes: its place in this unit, or back to the
+     * interpreter for anywhere else.
+     */
+    private ClassAssembler.Label branch(int target) {
+        if(target >= start && target < end) {
+            return label(target);
+        }
+        return exit(target);
+    }
+
+    private ClassAssembler.Label label(int at) {
+        ClassAssembler.Label answer = labels.get(at);
+        if(answer == null) {
+            answer = new ClassAssembler.Label();
+            labels.put(at, answer);
+        }
+        return answer;
+    }
+
+    private ClassAssembler.Label exit(int pc) {
+        ClassAssembler.Label answer = exits.get(pc);
+        if(answer == null) {
+            answer = new ClassAssembler.Label();
+            exits.put(pc, answer);
+        }
+        return answer;
+    }
+
+    // The types of the values on top of the stack, as far as the translation of the
+    // current straight-line stretch of code knows them; -1 is unknown.
+
+    private int known(int delta) {
+        int depth = -delta / 2;
+        return depth <= known.size() ? known.get(known.size() - depth) : -1;
+    }
+
+    private void pushKnown(int type) {
+        known.add(type);
+    }
+
+    private void popKnown(int count) {
+        for(int i = 0; i < count && known.size() > 0; i++) {
+            known.remove(known.size() - 1);
+        }
+    }
+
+    private int next(int at) {
+        return at + 1 + byteCodesCache[instructions[at]].getOperands().length();
+    }
+
+    private int branchTarget(int at) {
+        switch(byteCodesCache[instructions[at]]) {
+        case Jmp:
+        case JmpT:
+        case JmpF:
+            return instructions[at + 1];
+        case CmpJmpF:
+            return instructions[at + 6];
+        case TailCall:
+            return instructions[at + 2];
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * The byte code that checks its operands' types for a typed form, or null if
+     * opCode isn't one.
+     */
+    private ByteCodes checkedForm(ByteCodes opCode) {
+        switch(opCode) {
+        case IAdd:
+            return ByteCodes.Add;
+        case ISub:
+            return ByteCodes.Sub;
+        case IMul:
+            return ByteCodes.Mul;
+        case IDiv:
+            return ByteCodes.Div;
+        case IRem:
+            return ByteCodes.Rem;
+        case IPow:
+            return ByteCodes.Pow;
+        case ILt:
+            return ByteCodes.Lt;
+        case ILte:
+            return ByteCodes.Lte;
+        case IEq:
+            return ByteCodes.Eq;
+        case INeq:
+            return ByteCodes.Neq;
+        case IGte:
+            return ByteCodes.Gte;
+        case IGt:
+            return ByteCodes.Gt;
+        case BAnd:
+            return ByteCodes.And;
+        case BOr:
+            return ByteCodes.Or;
+        case BNot:
+            return ByteCodes.Not;
+        default:
+            return null;
+        }
+    }
+
+    private int arithmetic(ByteCodes opCode) {
+        switch(opCode) {
+        case Add:
+            return ClassAssembler.IADD;
+        case Sub:
+            return ClassAssembler.ISUB;
+        case Mul:
+            return ClassAssembler.IMUL;
+        case Div:
+            return ClassAssembler.IDIV;
+        default:
+            return ClassAssembler.IREM;
+        }
+    }
+
+    /**
+     * The JVM comparison that branches when relation does not hold.
+     */
+    private int negated(ByteCodes relation) {
+        switch(relation) {
+        case Lt:
+            return ClassAssembler.IF_ICMPGE;
+        case Lte:
+            return ClassAssembler.IF_ICMPGT;
+        case Eq:
+            return ClassAssembler.IF_ICMPNE;
+        case Neq:
+            return ClassAssembler.IF_ICMPEQ;
+        case Gte:
+            return ClassAssembler.IF_ICMPLT;
+        default:
+            return ClassAssembler.IF_ICMPLE;
+        }
+    }
+
+    private AbsMach vm;
+    private int[] instructions;
+    private int threshold;
+    private int[] counts;
+    private int[] unitStart;
+    private JitCode[] translations;
+    private boolean[] refused;
+    private ByteCodes[] byteCodesCache;
+    private int depth;
+
+    // While translating a unit
+    private int start;
+    private int end;
+    private TreeSet<Integer> jumpTargets;
+    private ClassAssembler.Code code;
+    private Map<Integer, ClassAssembler.Label> labels;
+    private Map<Integer, ClassAssembler.Label> exits;
+    private ClassAssembler.Label giveUp;
+    private Vector<Integer> known;
+}
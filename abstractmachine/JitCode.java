@@ -0,0 +1,29 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+/**
+ * A unit of stmnt code the Jit translated to JVM byte codes.
+ */
+public interface JitCode {
+    /**
+     * Run from the instruction vm's pc names, working on vm's stack.  Returns true
+     * once the unit has returned from its function, or reached Halt, and false when
+     * it gave the rest back to the interpreter.  Either way vm's pc, sp, and
+     * frameBase are where the interpreter should carry on.
+     */
+    public boolean run(AbsMach vm);
+}
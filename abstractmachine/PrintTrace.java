@@ -15,7 +15,6 @@
   statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
 */
 
-import java.util.Stack;
 import java.io.PrintStream;
 
 import common.CodeBuffer;
@@ -31,7 +30,7 @@ public class PrintTrace extends EmptyTrace {
         needsNewLine = false;
     }
 
-    public void preInstruction(CodeBuffer code, Stack<Integer> stack, Integer frame) {
+    public void preInstruction(CodeBuffer code, StackView stack, int frame) {
         Integer position = code.getFinger();
         Integer index = code.getByte(position);
         if(index >= byteCodesCache.length) {
@@ -94,6 +93,9 @@ public class PrintTrace extends EmptyTrace {
         case Print:
             needsNewLine = true;
             break;
+        default:
+            operandDStr = DisAsm.describeOperands(code, position, opCode);
+            break;
         }
 
         String typeXStr = hasOperandType ? String.format("%02x", type) : "";
@@ -124,13 +126,13 @@ public class PrintTrace extends EmptyTrace {
         return;
     }
 
-    public void postInstruction(CodeBuffer code, Stack<Integer> stack, Integer frame) {
+    public void postInstruction(CodeBuffer code, StackView stack, int frame) {
         if(needsNewLine && out == System.out) {
             out.println();
         }
     }
 
-    public void postProgram(CodeBuffer code, Stack<Integer> stack, Integer frame) {
+    public void postProgram(CodeBuffer code, StackView stack, int frame) {
         // Let's look for the string pool
         while(code.getFinger() < code.size()) {
             // There's more stuff past the halt op code.  Assume it's a string pool.
@@ -0,0 +1,265 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import java.util.Arrays;
+
+import common.ByteCodes;
+import common.CodeBuffer;
+import common.RuntimeError;
+
+/**
+ * <p>An object file's code decoded once, up front, so the abstract machine does not
+ * have to pull apart the byte image on every instruction.</p>
+ *
+ * <p>The decoded instructions live in one int array.  Each instruction is its byte code
+ * ordinal followed by its operands, already assembled into whole ints.  Code address
+ * operands (those of Jmp, JmpT, JmpF and Call, for example) are indexes into that
+ * array instead of image addresses.</p>
+ *
+ * <p>Return addresses are still pushed on the stack as image addresses by the compiled
+ * code, so the program keeps a map from image address to instruction index.</p>
+ *
+ * <p>Code runs from the end of the header up to the Halt that ends the main program.
+ * The string pool past that is decoded too, into a table of Strings indexed by image
+ * address less the code's end, so string operands needn't be rebuilt from bytes on
+ * every use.</p>
+ */
+public class Program {
+
+    public static Program decode(CodeBuffer code, int headerSize, int entryAddress) {
+        return decode(code, headerSize, entryAddress, byteCodeLayouts, byteCodeLongForms,
+                      byteCodeImplied);
+    }
+
+    /**
+     * Decode code whose instruction set is described by layouts: the operand layout
+     * of each op code, indexed by ordinal, using the letters of ByteCodes plus 'g'
+     * for a 2-byte register number.  Op code 0 has to be Halt.  Register numbers are
+     * decoded as slot offsets, that is, doubled.
+     */
+    public static Program decode(CodeBuffer code, int headerSize, int entryAddress,
+                                 String[] layouts) {
+        return decode(code, headerSize, entryAddress, layouts, null, null);
+    }
+
+    /**
+     * Decode code where some op codes are compact forms of others: op code i is
+     * decoded as op code longForms[i], with the operands implied[i] put in front of
+     * its own.  Null arrays mean there are no compact forms.
+     */
+    private static Program decode(CodeBuffer code, int headerSize, int entryAddress,
+                                  String[] layouts, int[] longForms, int[][] implied) {
+        Program program = new Program(code.size());
+        int[] operandBytes = new int[layouts.length];
+        for(int i = 0; i < layouts.length; i++) {
+            for(char kind : layouts[i].toCharArray()) {
+                operandBytes[i] += kind == 'i' || kind == 'a' ? 4 :
+                kind == 'g' || kind == 'h' || kind == 'j' ? 2 : 1;
+            }
+        }
+
+        // First pass: find where every instruction starts and how long its decoded
+        // form will be, so forward jumps can be turned into indexes.
+        int address = headerSize;
+        int index = 0;
+        boolean done = false;
+        while(!done) {
+            int opCode = opCodeAt(code, address, layouts);
+            program.indexes[address] = index;
+            address += 1 + operandBytes[opCode];
+            index += 1 + layouts[opCode].length() +
+                (implied == null ? 0 : implied[opCode].length);
+            done = opCode == halt && address > entryAddress;
+        }
+        program.codeEnd = address;
+
+        program.instructions = new int[index];
+        program.positions = new int[index];
+        Arrays.fill(program.positions, -1);
+
+        // Second pass: copy out the byte codes and their operands.
+        address = headerSize;
+        index = 0;
+        int[] out = program.instructions;
+        while(address < program.codeEnd) {
+            int opCode = opCodeAt(code, address, layouts);
+            program.positions[index] = address;
+            if(longForms == null) {
+                out[index++] = opCode;
+            }
+            else {
+                out[index++] = longForms[opCode];
+                for(int value : implied[opCode]) {
+                    out[index++] = value;
+                }
+            }
+
+            int at = address + 1;
+            for(char kind : layouts[opCode].toCharArray()) {
+                switch(kind) {
+                case 't':
+                case 'r':
+                case 'b':
+                    out[index++] = code.getByte(at);
+                    at += 1;
+                    break;
+                case 'g':
+                    out[index++] = 2 * code.getShort(at);
+                    at += 2;
+                    break;
+                case 'h':
+                    out[index++] = (short)code.getShort(at);
+                    at += 2;
+                    break;
+                case 'j':
+                    out[index++] = program.indexOf(address + (short)code.getShort(at));
+                    at += 2;
+                    break;
+                case 'a':
+                    out[index++] = program.indexOf(code.getInteger(at));
+                    at += 4;
+                    break;
+                default:
+                    out[index++] = code.getInteger(at);
+                    at += 4;
+                    break;
+                }
+            }
+            address = at;
+        }
+
+        // The string pool: zero terminated strings up to the end of the image
+        program.strings = new String[code.size() - program.codeEnd];
+        address = program.codeEnd;
+        while(address < code.size()) {
+            int start = address;
+            StringBuilder sb = new StringBuilder();
+            while(address < code.size() && code.getByte(address) != 0) {
+                sb.append((char)code.getByte(address++));
+            }
+            program.strings[start - program.codeEnd] = sb.toString();
+            address++;
+        }
+
+        program.entry = program.indexOf(entryAddress);
+        return program;
+    }
+
+    /**
+     * The decoded instructions.  The abstract machine reads this directly.
+     */
+    public int[] getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * The index of the first instruction of the main program.
+     */
+    public int getEntry() {
+        return entry;
+    }
+
+    /**
+     * The image address just past the final Halt.
+     */
+    public int getCodeEnd() {
+        return codeEnd;
+    }
+
+    /**
+     * The index of the instruction that starts at the image address.
+     */
+    public int indexOf(int address) {
+        if(address < 0 || address >= codeEnd || indexes[address] < 0) {
+            throw new RuntimeError("no instruction starts at address " + address);
+        }
+        return indexes[address];
+    }
+
+    /**
+     * The image address of the instruction at the index.
+     */
+    public int positionOf(int index) {
+        return positions[index];
+    }
+
+    /**
+     * The string in the pool at the image address, or null if no pooled string starts
+     * there.
+     */
+    public String stringAt(int address) {
+        if(address < codeEnd || address - codeEnd >= strings.length) {
+            return null;
+        }
+        return strings[address - codeEnd];
+    }
+
+    //------------------------------------------------------------------------------
+
+    private Program(int imageSize) {
+        indexes = new int[imageSize];
+        Arrays.fill(indexes, -1);
+    }
+
+    private static int opCodeAt(CodeBuffer code, int address, String[] layouts) {
+        if(address >= code.size()) {
+            throw new RuntimeError("ran off the end of the code at address " + address);
+        }
+        int index = code.getByte(address);
+        if(index >= layouts.length) {
+            throw new RuntimeError("at code position " + address + " read byte code " +
+                                   index + " which isn't valid");
+        }
+        return index;
+    }
+
+    private static String[] layoutsOf(ByteCodes[] opCodes) {
+        String[] answer = new String[opCodes.length];
+        for(ByteCodes opCode : opCodes) {
+            answer[opCode.ordinal()] = opCode.getOperands();
+        }
+        return answer;
+    }
+
+    private static int[] longFormsOf(ByteCodes[] opCodes) {
+        int[] answer = new int[opCodes.length];
+        for(ByteCodes opCode : opCodes) {
+            answer[opCode.ordinal()] = opCode.getLongForm().ordinal();
+        }
+        return answer;
+    }
+
+    private static int[][] impliedOf(ByteCodes[] opCodes) {
+        int[][] answer = new int[opCodes.length][];
+        for(ByteCodes opCode : opCodes) {
+            answer[opCode.ordinal()] = opCode.getImplied();
+        }
+        return answer;
+    }
+
+    private static final String[] byteCodeLayouts = layoutsOf(ByteCodes.values());
+    private static final int[] byteCodeLongForms = longFormsOf(ByteCodes.values());
+    private static final int[][] byteCodeImplied = impliedOf(ByteCodes.values());
+    private static final int halt = ByteCodes.Halt.ordinal();
+
+    private int[] instructions;
+    private int[] positions;
+    private int[] indexes;
+    private int entry;
+    private int codeEnd;
+    private String[] strings;
+}
@@ -0,0 +1,473 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import java.util.Arrays;
+
+import common.CodeBuffer;
+import common.Output;
+import common.RegCodes;
+import common.RuntimeError;
+import common.RuntimeType;
+
+/**
+ * <p>The register machine.  It runs the register code described in RegCodes, the
+ * alternative to AbsMach's stack code.  Its instructions name the registers they
+ * read and write, so values are used in place instead of being pushed and popped.</p>
+ *
+ * <p>Registers live in one int array, two slots each: type then value.  A call's
+ * window starts where the caller put the arguments, so they are already sitting in
+ * the callee's parameter registers.  Return addresses and saved window bases live
+ * in a separate call stack.</p>
+ */
+public class RegMach {
+
+    private static final int initialRegisters = 1024;
+
+    public RegMach(String fileName) {
+        code = new CodeBuffer();
+        code.readFrom(fileName);
+        load(fileName);
+    }
+
+    /**
+     * Run an object file that has already been read or mapped into code.
+     */
+    public RegMach(CodeBuffer code, String source) {
+        this.code = code;
+        load(source);
+    }
+
+    private void load(String source) {
+        regs = new int[2 * initialRegisters];
+        calls = new int[4 * 64];
+        view = new View();
+        runtimeTypeCache = RuntimeType.values();
+        regCodesCache = RegCodes.values();
+
+        String signature = "stmnt";
+        for(int i = 0; i < signature.length(); i++) {
+            if(code.getByte(i) != signature.charAt(i)) {
+                throw new RuntimeError("invalid signature in " + source);
+            }
+        }
+
+        Integer majorVer = code.getByte(signature.length());
+        if( majorVer != 1) {
+            throw new RuntimeError("cannot run major version " + majorVer );
+        }
+
+        Integer minorVer = code.getByte(signature.length() + 1);
+        if( minorVer != 0) {
+            throw new RuntimeError("cannot run minor version " + minorVer );
+        }
+
+        String[] layouts = new String[regCodesCache.length];
+        for(RegCodes opCode : regCodesCache) {
+            layouts[opCode.ordinal()] = opCode.getOperands();
+        }
+        program = Program.decode(code, signature.length() + 6,
+                                 code.getInteger(signature.length() + 2), layouts);
+        instructions = program.getInstructions();
+    }
+
+    public Integer go() {
+        return go(null);
+    }
+
+    /**
+     * Run the program.  As with AbsMach, a real trace makes the machine single-step
+     * between the trace hooks; without one the whole program runs in one call.  The
+     * hooks see the register file as the stack and the current window base as the
+     * frame.
+     */
+    public Integer go(Trace trace) {
+        try {
+            return run(trace);
+        }
+        finally {
+            // Whether it halted or failed, what the program printed goes out.
+            output.flush();
+        }
+    }
+
+    /**
+     * Send what the program prints to output.  By default it goes to System.out
+     * through an Output with the default buffer size and policy.
+     */
+    public void setOutput(Output output) {
+        this.output = output;
+    }
+
+    private Integer run(Trace trace) {
+        base = 0;
+        top = 0;
+        callDepth = 0;
+        pc = program.getEntry();
+
+        if(trace == null || trace.getClass() == EmptyTrace.class) {
+            execute(false);
+            return top;
+        }
+
+        trace.preProgram(code, view, base);
+        while(true) {
+            code.setFinger(program.positionOf(pc));
+            trace.preInstruction(code, view, base);
+            if(!execute(true)) {
+                break;
+            }
+            trace.postInstruction(code, view, base);
+        }
+        code.setFinger(program.getCodeEnd());
+        trace.postProgram(code, view, base);
+        return top;
+    }
+
+    private Boolean execute(Boolean singleStep) {
+        final int integer = RuntimeType.iInteger.ordinal();
+        final int bool = RuntimeType.iBoolean.ordinal();
+        int[] instructions = this.instructions;
+        int[] regs = this.regs;
+        int pc = this.pc;
+        int base = this.base;
+        final boolean oneOnly = singleStep;
+        int d;
+        int a;
+        int b;
+
+        while(true) {
+            switch(regCodesCache[instructions[pc++]]) {
+            case Halt:
+                this.pc = pc - 1;
+                this.base = base;
+                return false;
+            case LoadI:
+                d = base + instructions[pc++];
+                regs[d] = instructions[pc++];
+                regs[d + 1] = instructions[pc++];
+                break;
+            case Mov:
+                d = base + instructions[pc++];
+                a = base + instructions[pc++];
+                regs[d] = regs[a];
+                regs[d + 1] = regs[a + 1];
+                break;
+            case GLoad:
+                d = base + instructions[pc++];
+                a = instructions[pc++];
+                regs[d] = regs[a];
+                regs[d + 1] = regs[a + 1];
+                break;
+            case GStore:
+                d = instructions[pc++];
+                a = base + instructions[pc++];
+                regs[d] = regs[a];
+                regs[d + 1] = regs[a + 1];
+                break;
+            case Add:
+                d = base + instructions[pc++];
+                a = base + instructions[pc++];
+                b = base + instructions[pc++];
+                expectTypes(integer, regs[a], regs[b], "add");
+                regs[d + 1] = regs[a + 1] + regs[b + 1];
+                regs[d] = integer;
+                break;
+            case Sub:
+                d = base + instructions[pc++];
+                a = base + instructions[pc++];
+                b = base + instructions[pc++];
+                expectTypes(integer, regs[a], regs[b], "subtract");
+                regs[d + 1] = regs[a + 1] - regs[b + 1];
+                regs[d] = integer;
+                break;
+            case Mul:
+                d = base + instructions[pc++];
+                a = base + instructions[pc++];
+                b = base + instructions[pc++];
+                expectTypes(integer, regs[a], regs[b], "multiply");
+                regs[d + 1] = regs[a + 1] * regs[b + 1];
+                regs[d] = integer;
+                break;
+            case Div:
+                d = base + instructions[pc++];
+                a = base + instructions[pc++];
+                b = base + instructions[pc++];
+                expectTypes(integer, regs[a], regs[b], "'div'");
+                regs[d + 1] = regs[a + 1] / regs[b + 1];
+                regs[d] = integer;
+                break;
+            case Rem:
+                d = base + instructions[pc++];
+                a = base + instructions[pc++];
+                b = base + instructions[pc++];
+                expectTypes(integer, regs[a], regs[b], "'rem'");
+                regs[d + 1] = regs[a + 1] % regs[b + 1];
+                regs[d] = integer;
+                break;
+            case Pow:
+                d = base + instructions[pc++];
+                a = base + instructions[pc++];
+                b = base + instructions[pc++];
+                expectTypes(integer, regs[a], regs[b], "'pow'");
+                regs[d + 1] = (int)Math.pow(regs[a + 1], regs[b + 1]);
+                regs[d] = integer;
+                break;
+            case Lt:
+            case Lte:
+            case Eq:
+            case Neq:
+            case Gte:
+            case Gt: {
+                RegCodes relation = regCodesCache[instructions[pc - 1]];
+                d = base + instructions[pc++];
+                a = base + instructions[pc++];
+                b = base + instructions[pc++];
+                boolean answer = compare(relation, regs[a], regs[a + 1],
+                                         regs[b], regs[b + 1]);
+                regs[d + 1] = answer ? 1 : 0;
+                regs[d] = bool;
+            }
+                break;
+            case And:
+                d = base + instructions[pc++];
+                a = base + instructions[pc++];
+                b = base + instructions[pc++];
+                expectTypes(bool, regs[a], regs[b], "'and'");
+                regs[d + 1] = regs[a + 1] == 1 && regs[b + 1] == 1 ? 1 : 0;
+                regs[d] = bool;
+                break;
+            case Or:
+                d = base + instructions[pc++];
+                a = base + instructions[pc++];
+                b = base + instructions[pc++];
+                expectTypes(bool, regs[a], regs[b], "'or'");
+                regs[d + 1] = regs[a + 1] == 1 || regs[b + 1] == 1 ? 1 : 0;
+                regs[d] = bool;
+                break;
+            case Not:
+                d = base + instructions[pc++];
+                a = base + instructions[pc++];
+                expectType(bool, regs[a], "'not'");
+                regs[d + 1] = regs[a + 1] == 1 ? 0 : 1;
+                regs[d] = bool;
+                break;
+            case Print:
+                a = base + instructions[pc++];
+                print(regs[a], regs[a + 1]);
+                break;
+            case PrtLn:
+                output.println();
+                break;
+            case Jmp:
+                pc = instructions[pc];
+                break;
+            case JmpT:
+                a = base + instructions[pc++];
+                expectType(bool, regs[a], "test");
+                pc = regs[a + 1] == 1 ? instructions[pc] : pc + 1;
+                break;
+            case JmpF:
+                a = base + instructions[pc++];
+                expectType(bool, regs[a], "test");
+                pc = regs[a + 1] == 0 ? instructions[pc] : pc + 1;
+                break;
+            case Frame: {
+                int parameters = 2 * instructions[pc++];
+                int size = 2 * instructions[pc++];
+                if(base + size > regs.length) {
+                    this.regs = Arrays.copyOf(regs, Math.max(2 * regs.length,
+                                                             base + size));
+                    regs = this.regs;
+                }
+                // The rest of the window starts out as integer zeros, like fresh
+                // stack slots in AbsMach.
+                Arrays.fill(regs, base + parameters, base + size, 0);
+                top = base + size;
+            }
+                break;
+            case Call: {
+                int target = instructions[pc++];
+                int window = instructions[pc++];
+                d = instructions[pc++];
+                if(4 * callDepth + 4 > calls.length) {
+                    calls = Arrays.copyOf(calls, 2 * calls.length);
+                }
+                int at = 4 * callDepth++;
+                calls[at] = pc;
+                calls[at + 1] = base;
+                calls[at + 2] = d;
+                calls[at + 3] = top;
+                base += window;
+                pc = target;
+            }
+                break;
+            case Ret: {
+                a = base + instructions[pc++];
+                int type = regs[a];
+                int value = regs[a + 1];
+                int at = 4 * --callDepth;
+                pc = calls[at];
+                base = calls[at + 1];
+                d = base + calls[at + 2];
+                top = calls[at + 3];
+                regs[d] = type;
+                regs[d + 1] = value;
+            }
+                break;
+            case NoRtn:
+                throw new RuntimeError("function ended without a return statement");
+            default:
+                break;
+            }
+
+            if(oneOnly) {
+                this.pc = pc;
+                this.base = base;
+                return true;
+            }
+        }
+    }
+
+    //------------------------------------------------------------------------------
+
+    private void print(int type, int value) {
+        switch(runtimeTypeCache[type]) {
+        case iInteger:
+            output.print(value);
+            break;
+        case iBoolean:
+            output.print(value == 1);
+            break;
+        case iString:
+            output.print(getString(value));
+            break;
+        default:
+            System.err.println("don't now how to print type " + runtimeTypeCache[type]);
+            break;
+        }
+        output.print(' ');
+    }
+
+    private String getString(int location) {
+        String pooled = program.stringAt(location);
+        if(pooled != null) {
+            return pooled;
+        }
+        StringBuilder sb = new StringBuilder();
+        while(code.getByte(location) != 0) {
+            sb.append((char)code.getByte(location++));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The relational instructions.  Two strings compare as strings; otherwise both
+     * sides have to be integers.
+     */
+    private boolean compare(RegCodes relation, int leftType, int leftValue,
+                            int rightType, int rightValue) {
+        final int string = RuntimeType.iString.ordinal();
+        final int integer = RuntimeType.iInteger.ordinal();
+
+        if(leftType == string && rightType == string) {
+            // The compiler pools each literal once, so one address is one string
+            // and the strings needn't be looked at.
+            int order = leftValue == rightValue ? 0
+                : getString(leftValue).compareTo(getString(rightValue));
+            switch(relation) {
+            case Lt:
+                return order < 0;
+            case Lte:
+                return order <= 0;
+            case Eq:
+                return order == 0;
+            case Neq:
+                return order != 0;
+            case Gte:
+                return order >= 0;
+            default:
+                return order > 0;
+            }
+        }
+
+        switch(relation) {
+        case Lt:
+            expectTypes(integer, leftType, rightType, "'<'");
+            return leftValue < rightValue;
+        case Lte:
+            expectTypes(integer, leftType, rightType, "'<='");
+            return leftValue <= rightValue;
+        case Eq:
+            expectTypes(integer, leftType, rightType, "'?='");
+            return leftValue == rightValue;
+        case Neq:
+            expectTypes(integer, leftType, rightType, "'!='");
+            return leftValue != rightValue;
+        case Gte:
+            expectTypes(integer, leftType, rightType, "'>='");
+            return leftValue >= rightValue;
+        default:
+            expectTypes(integer, leftType, rightType, "'>'");
+            return leftValue > rightValue;
+        }
+    }
+
+    private void expectTypes(int expect, int left, int right, String op) {
+        if(left != expect || right != expect) {
+            throw new RuntimeError("attempting to " + op + " types of " +
+                                   runtimeTypeCache[left].name() + " and " +
+                                   runtimeTypeCache[right].name());
+        }
+    }
+
+    private void expectType(int expect, int left, String op) {
+        if(left != expect) {
+            throw new RuntimeError("attempting to " + op + " a type of " +
+                                   runtimeTypeCache[left].name());
+        }
+    }
+
+    /**
+     * A read-only look at the register file for the Trace hooks.
+     */
+    private class View implements StackView {
+        public int size() {
+            return top;
+        }
+
+        public int elementAt(int index) {
+            if(index >= top) {
+                throw new ArrayIndexOutOfBoundsException(index);
+            }
+            return regs[index];
+        }
+    }
+
+    private CodeBuffer code;
+    private Output output = new Output();
+    private Program program;
+    private int[] instructions;
+    private int[] regs;
+    private int[] calls;
+    private int callDepth;
+    private int base;
+    private int top;
+    private int pc;
+    private StackView view;
+    private RuntimeType[] runtimeTypeCache;
+    private RegCodes[] regCodesCache;
+}
@@ -15,12 +15,11 @@
   statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
 */
 
-import java.util.Stack;
 import common.CodeBuffer;
 
 public interface Trace {
-    public void preProgram(CodeBuffer code, Stack<Integer> stack, Integer frame);
-    public void preInstruction(CodeBuffer code, Stack<Integer> stack, Integer frame);
-    public void postInstruction(CodeBuffer code, Stack<Integer> stack, Integer frame);
-    public void postProgram(CodeBuffer code, Stack<Integer> stack, Integer frame);
+    public void preProgram(CodeBuffer code, StackView stack, int frame);
+    public void preInstruction(CodeBuffer code, StackView stack, int frame);
+    public void postInstruction(CodeBuffer code, StackView stack, int frame);
+    public void postProgram(CodeBuffer code, StackView stack, int frame);
 }
@@ -17,48 +17,104 @@
 
 package common;
 
-import java.util.HashMap;
-import java.util.Vector;
+import java.util.Arrays;
 
 /**
- * Track where in the code labels are referenced.  Once label addresses are known,
- * patch those references with the actual address the label refers to.
+ * Track where in the code labels are referenced, and where the labels are.  Once label
+ * addresses are known, patch those references with the actual address the label
+ * refers to.  Labels come from a Labeller, so both are kept in arrays indexed by label.
  */
 public class BackPatch {
 
     public BackPatch() {
-        codeReferences = new HashMap<String, Vector<Integer>>();
+        addresses = new int[64];
+        Arrays.fill(addresses, -1);
+        positions = new int[64];
+        labels = new int[64];
+        count = 0;
     }
 
     /**
      * 'where' indicates a place in the code that needs the address of 'label' patched
      * in.
      */
-    public void addBackPatch(String label, Integer where) {
-        if(codeReferences.containsKey(label)) {
-            codeReferences.get(label).add(where);
+    public void addBackPatch(int label, int where) {
+        if(count == positions.length) {
+            positions = Arrays.copyOf(positions, count * 2);
+            labels = Arrays.copyOf(labels, count * 2);
         }
-        else {
-            Vector<Integer> v = new Vector<Integer>();
-            v.add(where);
-            codeReferences.put(label, v);
+        positions[count] = where;
+        labels[count] = label;
+        count++;
+    }
+
+    /**
+     * How many places in the code are waiting for an address.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * The place in the code of the i'th reference.
+     */
+    public int getPosition(int i) {
+        return positions[i];
+    }
+
+    /**
+     * The label the i'th reference is waiting for.
+     */
+    public int getLabel(int i) {
+        return labels[i];
+    }
+
+    /**
+     * Forget the references, keeping the label addresses.
+     */
+    public void clearBackPatches() {
+        count = 0;
+    }
+
+    /**
+     * 'label' is at 'address' in the code.
+     */
+    public void setAddress(int label, int address) {
+        if(label >= addresses.length) {
+            int size = addresses.length;
+            addresses = Arrays.copyOf(addresses, Math.max(size * 2, label + 1));
+            Arrays.fill(addresses, size, addresses.length, -1);
         }
+        addresses[label] = address;
+    }
+
+    /**
+     * Where 'label' is in the code, or -1 if it hasn't been placed.
+     */
+    public int getAddress(int label) {
+        return label >= 0 && label < addresses.length ? addresses[label] : -1;
     }
 
-    public Boolean doBackPatches(HashMap<String, Integer> labels, CodeBuffer code) {
-        for(String key : codeReferences.keySet()) {
-            if(!labels.containsKey(key)) {
-                throw new Error("in BackPatch.doBackPatches: cannot find label " + key +
+    /**
+     * One more than the largest label that may have an address.
+     */
+    public int getLabelLimit() {
+        return addresses.length;
+    }
+
+    public void doBackPatches(CodeBuffer code) {
+        for(int i = 0; i < count; i++) {
+            int address = getAddress(labels[i]);
+            if(address < 0) {
+                throw new Error("in BackPatch.doBackPatches: cannot find label " + labels[i] +
                                 " in the provided labels. Giving up.");
             }
-            Vector<Integer> v = codeReferences.get(key);
-            Integer address = labels.get(key);
-            for(Integer index : v) {
-                code.putInteger(address, index);
-            }
+            code.putInteger(address, positions[i]);
         }
-        return false;
     }
 
-    private HashMap<String, Vector<Integer>> codeReferences;
+    private int[] addresses;
+    private int[] positions;
+    private int[] labels;
+    private int count;
 }
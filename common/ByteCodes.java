@@ -17,36 +17,156 @@
 
 package common;
 
+/**
+ * <p>The abstract machine's instructions.</p>
+ *
+ * <p>Each byte code knows the operands that follow it in an object file, one letter
+ * per operand:</p>
+ * <ul>
+ *   <li>'t' a byte holding a RuntimeType ordinal</li>
+ *   <li>'r' a byte holding a relational ByteCodes ordinal (Lt .. Gt)</li>
+ *   <li>'b' a byte holding a small count</li>
+ *   <li>'h' a 2-byte signed integer</li>
+ *   <li>'i' a 4-byte integer</li>
+ *   <li>'a' a 4-byte code address</li>
+ *   <li>'j' a 2-byte signed code offset, from the address of the byte code</li>
+ * </ul>
+ *
+ * <p>The compact forms at the end, from minor version 3 on, are shorter encodings of
+ * other byte codes.  The abstract machine decodes each as its long form, supplying
+ * the operands the compact form leaves out.</p>
+ *
+ * <p>TailCall, after the compact forms, is marked by minor version 5 of its own, so a
+ * machine that doesn't know it rejects the image instead of misreading it.</p>
+ *
+ * <p>The typed forms after it, from minor version 4 on, do what the byte code
+ * without the I (integer) or B (boolean) in front does, for operands the compiler has
+ * proved are of that type.  They don't check the operands' types.</p>
+ */
 public enum ByteCodes {
-    Halt,   // 0x00
-    Push,   // 0x01
-    Pop,    // 0x02
-    Add,    // 0x03
-    Sub,    // 0x04
-    Mul,    // 0x05
-    Div,    // 0x06
-    Rem,    // 0x07
-    Pow,    // 0x08
-    Lt,     // 0x09
-    Lte,    // 0x0a
-    Eq,     // 0x0b
-    Neq,    // 0x0c
-    Gte,    // 0x0d
-    Gt,     // 0x0e
-    And,    // 0x0f
-    Or,     // 0x10
-    Not,    // 0x11
-    Print,  // 0x12   // print top of stack followed by space to the console
-    Move,   // 0x13   // move top of stack to stack position given by parameter
-    Copy,   // 0x14   // copy stack position given by parameter to top of stack
-    PrtLn,  // 0x15   // print a new line to the console
-    Jmp,    // 0x16   // jump unconditionally to the parameter
-    JmpT,   // 0x17   // if the top of stack is true jump to parameter
-    JmpF,   // 0x18   // if the top of stack is false jump to parameter
-    Enter,  // 0x19   // enter a new scope
-    Exit,   // 0x1a   // exiti a scope
-    Locals, // 0x1b   // reserve parameter number of stack slots
-    Call,   // 0x1c   // call a function at the address in the parameter
-    Return, // 0x1d   // return from a function call
-    SetRtn, // 0x1e   // set top of stack as return value
+    Halt(""),       // 0x00
+    Push("ti"),     // 0x01
+    Pop(""),        // 0x02
+    Add(""),        // 0x03
+    Sub(""),        // 0x04
+    Mul(""),        // 0x05
+    Div(""),        // 0x06
+    Rem(""),        // 0x07
+    Pow(""),        // 0x08
+    Lt(""),         // 0x09
+    Lte(""),        // 0x0a
+    Eq(""),         // 0x0b
+    Neq(""),        // 0x0c
+    Gte(""),        // 0x0d
+    Gt(""),         // 0x0e
+    And(""),        // 0x0f
+    Or(""),         // 0x10
+    Not(""),        // 0x11
+    Print(""),      // 0x12   // print top of stack followed by space to the console
+    Move("ii"),     // 0x13   // move top of stack to stack position given by parameter
+    Copy("ii"),     // 0x14   // copy stack position given by parameter to top of stack
+    PrtLn(""),      // 0x15   // print a new line to the console
+    Jmp("a"),       // 0x16   // jump unconditionally to the parameter
+    JmpT("a"),      // 0x17   // if the top of stack is true jump to parameter
+    JmpF("a"),      // 0x18   // if the top of stack is false jump to parameter
+    Enter(""),      // 0x19   // enter a new scope
+    Exit(""),       // 0x1a   // exiti a scope
+    Locals("i"),    // 0x1b   // reserve parameter number of stack slots
+    Call("a"),      // 0x1c   // call a function at the address in the parameter
+    Return(""),     // 0x1d   // return from a function call
+    SetRtn(""),     // 0x1e   // set top of stack as return value
+
+    // Superinstructions.  Each one does the work of a sequence the compiler emits a
+    // lot, in one dispatch.
+    MoveSum("iiiiii"),  // 0x1f   // Copy a; Copy b; Add; Move x
+    CmpJmpF("riitia"),  // 0x20   // Copy a; Push value; <rel>; JmpF
+    CallPrep("i"),      // 0x21   // Push iInteger -1; Push return address; Enter
+
+    // Compact forms
+    MoveS("bb", Move),      // 0x22
+    CopyS("bb", Copy),      // 0x23
+    PushSmallInt("h", Push, RuntimeType.iInteger.ordinal()),    // 0x24
+    PushTrue("", Push, RuntimeType.iBoolean.ordinal(), 1),      // 0x25
+    PushFalse("", Push, RuntimeType.iBoolean.ordinal(), 0),     // 0x26
+    JmpS("j", Jmp),         // 0x27
+    JmpTS("j", JmpT),       // 0x28
+    JmpFS("j", JmpF),       // 0x29
+
+    TailCall("ia"),     // 0x2a   // Replace the current call's arguments with the given
+                                  // number of slots off the stack; Jmp
+
+    // Typed forms
+    IAdd(""),       // 0x2b
+    ISub(""),       // 0x2c
+    IMul(""),       // 0x2d
+    IDiv(""),       // 0x2e
+    IRem(""),       // 0x2f
+    IPow(""),       // 0x30
+    ILt(""),        // 0x31
+    ILte(""),       // 0x32
+    IEq(""),        // 0x33
+    INeq(""),       // 0x34
+    IGte(""),       // 0x35
+    IGt(""),        // 0x36
+    BAnd(""),       // 0x37
+    BOr(""),        // 0x38
+    BNot(""),       // 0x39
+
+    ;
+
+    ByteCodes(String operands) {
+        this.operands = operands;
+        int bytes = 0;
+        for(char kind : operands.toCharArray()) {
+            bytes += (kind == 't' || kind == 'r' || kind == 'b') ? 1 :
+                (kind == 'h' || kind == 'j') ? 2 : 4;
+        }
+        operandBytes = bytes;
+        longForm = this;
+        implied = new int[0];
+    }
+
+    /**
+     * A compact form of longForm.  The long form's leading operands are implied; the
+     * rest follow the byte code as described by operands.
+     */
+    ByteCodes(String operands, ByteCodes longForm, int... implied) {
+        this(operands);
+        this.longForm = longForm;
+        this.implied = implied;
+    }
+
+    /**
+     * The operand layout, one letter per operand, as described above.
+     */
+    public String getOperands() {
+        return operands;
+    }
+
+    /**
+     * How many bytes of operands follow the byte code in an object file.
+     */
+    public int getOperandBytes() {
+        return operandBytes;
+    }
+
+    /**
+     * The byte code this one is a compact form of, or this one itself.
+     */
+    public ByteCodes getLongForm() {
+        return longForm;
+    }
+
+    /**
+     * The operand values a compact form leaves out, which come first in its long
+     * form.
+     */
+    public int[] getImplied() {
+        return implied;
+    }
+
+    private final String operands;
+    private final int operandBytes;
+    private ByteCodes longForm;
+    private int[] implied;
 }
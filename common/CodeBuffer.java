@@ -21,7 +21,10 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Vector;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * <p>Store and manipulate bytes in big-endian format.  In a way there are 2
@@ -33,78 +36,91 @@ import java.util.Vector;
  * This means there needs to be a way for the CodeBuffer to know where the insertion
  * point is.  This point is called the finger.  The methods prefixed with read and write
  * automatically update the finger.  The finger position can be gotten and set.
- * </p>
+ * Writing at the finger overwrites what is there and grows the buffer when it runs
+ * past the end.</p>
  *
  * <p>It is also useful to be able to access the CodeBuffer randomly, so the methods
  * prefixed with put and get write anywhere into the CodeBuffer.  These calls do not
  * change the finger.</p>
  *
+ * <p>The bytes are kept in a heap ByteBuffer that doubles in size as it fills up.
+ * ByteBuffers are big-endian, so whole ints and shorts go in and come out in one
+ * call.</p>
+ *
+ * <p>A CodeBuffer can also be a read-only view of a memory-mapped object file; see
+ * map().  Such a buffer can be read but not written.</p>
+ *
  * <p>This class also hides some bit-twiddling.
  */
 public class CodeBuffer {
 
     public CodeBuffer() {
-        core = new Vector<Byte>(1024, 1024);
+        core = ByteBuffer.allocate(1024);
+        size = 0;
         finger = 0;
     }
 
+    /**
+     * Map fileName into memory read-only and wrap it in a CodeBuffer.  Nothing is
+     * copied; reads go straight to the mapped pages, which are shared with any
+     * other process mapping the same file.
+     */
+    public static CodeBuffer map(String fileName) {
+        try(FileChannel channel = FileChannel.open(Paths.get(fileName),
+                                                   StandardOpenOption.READ)) {
+            CodeBuffer answer = new CodeBuffer();
+            answer.core = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            answer.size = answer.core.capacity();
+            return answer;
+        }
+        catch(Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    public Boolean isReadOnly() {
+        return core.isReadOnly();
+    }
+
     public int getByte(int at) {
-        return 0x000000FF & ((int)core.elementAt(at));
+        checkBounds(at, 1);
+        return 0x000000FF & core.get(at);
     }
 
     public int getShort(int at) {
-        int info2 = 0x000000FF & ((int)core.elementAt(at));
-        int info1 = 0x000000FF & ((int)core.elementAt(at + 1));
-        info2 = info2 << 8 | info1;
-        return info2;
+        checkBounds(at, 2);
+        return 0x0000FFFF & core.getShort(at);
     }
 
     public int getInteger(int at) {
-        int info4 = 0x000000FF & ((int)core.elementAt(at));
-        int info3 = 0x000000FF & ((int)core.elementAt(at + 1));
-        int info2 = 0x000000FF & ((int)core.elementAt(at + 2));
-        int info1 = 0x000000FF & ((int)core.elementAt(at + 3));
-        info4 = info4 << 8 | info3;
-        info4 = info4 << 8 | info2;
-        info4 = info4 << 8 | info1;
-        return info4;
+        checkBounds(at, 4);
+        return core.getInt(at);
     }
 
     public void putByte(int data, int at) {
-        byte info = (byte)data;
-        data = data >>> 8;
-        if(data > 0) {
+        if((data >>> 8) > 0) {
             throw new Error("in CodeBuffer.putByte: data contains more than 8-bits " +
                             "of info.");
         }
-        core.set(at, info);
+        checkWritable();
+        checkBounds(at, 1);
+        core.put(at, (byte)data);
     }
 
     public void putShort(int data, int at) {
-        byte info1 = (byte)data;
-        data = data >>> 8;
-        byte info2 = (byte)data;
-        data = data >>> 8;
-        if(data > 0) {
+        if((data >>> 16) > 0) {
             throw new Error("in CodeBuffer.putShort: data contains more than 16-bits " +
                             "of info.");
         }
-        core.set(at, info2);
-        core.set(at + 1, info1);
+        checkWritable();
+        checkBounds(at, 2);
+        core.putShort(at, (short)data);
     }
 
     public void putInteger(int data, int at) {
-        byte info1 = (byte)data;
-        data = data >>> 8;
-        byte info2 = (byte)data;
-        data = data >>> 8;
-        byte info3 = (byte)data;
-        data = data >>> 8;
-        byte info4 = (byte)data;
-        core.set(at, info4);
-        core.set(at + 1, info3);
-        core.set(at + 2, info2);
-        core.set(at + 3, info1);
+        checkWritable();
+        checkBounds(at, 4);
+        core.putInt(at, data);
     }
 
     //------------------------------------------------------------------------------
@@ -120,25 +136,21 @@ public class CodeBuffer {
     }
 
     public int readByte() {
-        return 0x000000FF & ((int)core.elementAt(finger++));
+        int answer = getByte(finger);
+        finger += 1;
+        return answer;
     }
 
     public int readShort() {
-        int info2 = 0x000000FF & ((int)core.elementAt(finger++));
-        int info1 = 0x000000FF & ((int)core.elementAt(finger++));
-        info2 = info2 << 8 | info1;
-        return info2;
+        int answer = getShort(finger);
+        finger += 2;
+        return answer;
     }
 
     public int readInteger() {
-        int info4 = 0x000000FF & ((int)core.elementAt(finger++));
-        int info3 = 0x000000FF & ((int)core.elementAt(finger++));
-        int info2 = 0x000000FF & ((int)core.elementAt(finger++));
-        int info1 = 0x000000FF & ((int)core.elementAt(finger++));
-        info4 = info4 << 8 | info3;
-        info4 = info4 << 8 | info2;
-        info4 = info4 << 8 | info1;
-        return info4;
+        int answer = getInteger(finger);
+        finger += 4;
+        return answer;
     }
 
     public CodeBuffer writeByte(RuntimeType type) {
@@ -150,52 +162,56 @@ public class CodeBuffer {
     }
 
     public CodeBuffer writeByte(int data) {
-        byte info = (byte)data;
-        data = data >>> 8;
-        if(data > 0) {
+        if((data >>> 8) > 0) {
             throw new Error("in CodeBuffer.writeByte: data contains more than 8-bits " +
                             "of info.");
         }
-        core.add(finger++, info);
+        makeRoom(1);
+        core.put(finger, (byte)data);
+        advance(1);
         return this;
     }
 
     public CodeBuffer writeShort(int data) {
-        byte info1 = (byte)data;
-        data = data >>> 8;
-        byte info2 = (byte)data;
-        data = data >>> 8;
-        if(data > 0) {
+        if((data >>> 16) > 0) {
             throw new Error("in CodeBuffer.writeShort: data contains more than 16-bits " +
                             "of info.");
         }
-        core.add(finger++, info2);
-        core.add(finger++, info1);
+        makeRoom(2);
+        core.putShort(finger, (short)data);
+        advance(2);
         return this;
     }
 
     public CodeBuffer writeInteger(int data) {
-        byte info1 = (byte)data;
-        data = data >>> 8;
-        byte info2 = (byte)data;
-        data = data >>> 8;
-        byte info3 = (byte)data;
-        data = data >>> 8;
-        byte info4 = (byte)data;
-        core.add(finger++, info4);
-        core.add(finger++, info3);
-        core.add(finger++, info2);
-        core.add(finger++, info1);
+        makeRoom(4);
+        core.putInt(finger, data);
+        advance(4);
         return this;
     }
 
     public CodeBuffer writeString(String data) {
-        for(byte b : data.getBytes()) {
-            core.add(finger++, b);
-        }
+        return writeBytes(data.getBytes());
+    }
+
+    public CodeBuffer writeBytes(byte[] data) {
+        makeRoom(data.length);
+        ByteBuffer at = core.duplicate();
+        at.position(finger);
+        at.put(data);
+        advance(data.length);
         return this;
     }
 
+    /**
+     * Write everything in other at the finger.
+     */
+    public CodeBuffer writeBuffer(CodeBuffer other) {
+        byte[] contents = new byte[other.size];
+        other.core.duplicate().position(0).get(contents);
+        return writeBytes(contents);
+    }
+
     //------------------------------------------------------------------------------
 
     public Boolean readFrom(String fileName) {
@@ -210,16 +226,16 @@ public class CodeBuffer {
         }
     }
 
+    /**
+     * Append everything left in the stream to the end of the buffer.  The finger
+     * does not move.
+     */
     public Boolean readFrom(InputStream in) {
         try {
-            byte[] buffer = new byte[1024];
-            int amountRead = in.read(buffer);
-            while(amountRead > 0) {
-                for(int i = 0; i < amountRead; i++) {
-                    core.add(buffer[i]);
-                }
-                amountRead = in.read(buffer);
-            }
+            byte[] contents = in.readAllBytes();
+            Integer oldFinger = setFinger(size);
+            writeBytes(contents);
+            setFinger(oldFinger);
             return true;
         }
         catch(Exception e) {
@@ -241,12 +257,14 @@ public class CodeBuffer {
     }
     public Boolean writeTo(OutputStream out) {
         try {
-            byte[] coreArray = new byte[core.size()];
-            int i = 0;
-            for(Byte b : core) {
-                coreArray[i++] = b;
+            if(core.hasArray()) {
+                out.write(core.array(), 0, size);
+            }
+            else {
+                byte[] contents = new byte[size];
+                core.duplicate().position(0).get(contents);
+                out.write(contents);
             }
-            out.write(coreArray);
         }
         catch(Exception e) {
             throw new Error(e);
@@ -255,20 +273,66 @@ public class CodeBuffer {
     }
 
     public Integer size() {
-        return core.size();
+        return size;
+    }
+
+    /**
+     * Drop everything from newSize on.  The finger is moved back to newSize if it was
+     * past it.
+     */
+    public void truncate(Integer newSize) {
+        checkWritable();
+        size = Math.min(size, newSize);
+        finger = Math.min(finger, size);
     }
 
     //------------------------------------------------------------------------------
 
     public String dumpToString() {
         StringBuilder out = new StringBuilder();
-        for(Byte b : core) {
-            out.append(String.format("0x%02x\n", b));
+        for(int i = 0; i < size; i++) {
+            out.append(String.format("0x%02x\n", core.get(i)));
         }
         return out.toString();
     }
 
     //------------------------------------------------------------------------------
-    private Integer finger;
-    private Vector<Byte> core;
+
+    private void checkWritable() {
+        if(core.isReadOnly()) {
+            throw new Error("in CodeBuffer: attempt to write to a read-only buffer.");
+        }
+    }
+
+    private void checkBounds(int at, int count) {
+        if(at < 0 || at + count > size) {
+            throw new ArrayIndexOutOfBoundsException(at);
+        }
+    }
+
+    /**
+     * Grow the backing buffer, if needed, so count bytes can be written at the finger.
+     */
+    private void makeRoom(int count) {
+        checkWritable();
+        int needed = finger + count;
+        if(needed > core.capacity()) {
+            int capacity = Math.max(core.capacity() * 2, needed);
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            bigger.put(core.array(), 0, size);
+            core = bigger;
+        }
+    }
+
+    private void advance(int count) {
+        finger += count;
+        if(finger > size) {
+            size = finger;
+        }
+    }
+
+    //------------------------------------------------------------------------------
+    private int finger;
+    private int size;
+    private ByteBuffer core;
 }
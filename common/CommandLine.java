@@ -0,0 +1,100 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+package common;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Checks for the values of command line options, shared by the compiler, the
+ * abstract machine and the interpreter.  Each takes its options from the arguments in
+ * front of the last one, which names the file to work on.</p>
+ *
+ * <p>When a check fails it prints what is wrong and the tool's usage line to
+ * System.err, and the tool should stop.</p>
+ */
+public class CommandLine {
+
+    /**
+     * Check args for the tool whose usage line is usage.  valued names the options
+     * that take a value.
+     */
+    public CommandLine(String[] args, String usage, String... valued) {
+        this.args = args;
+        this.usage = usage;
+        this.valued = Arrays.asList(valued);
+    }
+
+    /**
+     * Whether args[arg] has the value it needs: true if it isn't an option that takes
+     * one, or if its value follows it.  The value can't be the last argument, which
+     * is the file.
+     */
+    public Boolean hasValue(int arg) {
+        if(!valued.contains(args[arg]) || arg + 1 < args.length - 1) {
+            return true;
+        }
+        System.err.println(args[arg] + " needs a value\n" + usage);
+        return false;
+    }
+
+    /**
+     * The whole number args[arg], the value of the option before it, or null after
+     * saying why it isn't one of at least smallest.
+     */
+    public Integer count(int arg, int smallest) {
+        try {
+            Integer value = Integer.valueOf(args[arg]);
+            if(value >= smallest) {
+                return value;
+            }
+        }
+        catch(NumberFormatException e) {
+            // Reported below along with a number that is too small.
+        }
+        System.err.println(args[arg - 1] + " needs a whole number of at least " + smallest +
+                           ", not " + args[arg] + "\n" + usage);
+        return null;
+    }
+
+    /**
+     * The flush policy named by args[arg], the value of the option before it, or null
+     * after saying why it isn't one.
+     */
+    public Output.Policy policy(int arg) {
+        try {
+            return Output.policyNamed(args[arg]);
+        }
+        catch(RuntimeError err) {
+            System.err.println(args[arg - 1] + " needs line or full, not " + args[arg] +
+                               "\n" + usage);
+            return null;
+        }
+    }
+
+    /**
+     * Print the usage line, for a command line that names no file.
+     */
+    public void usage() {
+        System.err.println(usage);
+    }
+
+    private String[] args;
+    private String usage;
+    private List<String> valued;
+}
@@ -18,28 +18,34 @@
 package common;
 
 /**
- * A simple class to return unique labels. Never returns the same one twice.
+ * A simple class to return unique labels. Never returns the same one twice.  Labels
+ * are small integers handed out in order, so they can index arrays.
  */
 public class Labeller {
 
     public Labeller() {
         counter = 0;
-        label = "label";
     }
 
-    public Labeller(String prefix) {
-        counter = 0;
-        label = prefix;
+    public int make() {
+        return counter++;
     }
 
-    public String make() {
-        return make(this.label);
+    /**
+     * Make count labels at once.  Returns the first; the others follow it.
+     */
+    public int make(int count) {
+        int first = counter;
+        counter += count;
+        return first;
     }
 
-    public String make(String prefix) {
-        return String.format("%s%d", prefix, counter++);
+    /**
+     * How many labels have been made.
+     */
+    public int getCount() {
+        return counter;
     }
 
-    private long counter;
-    private String label;
+    private int counter;
 }
@@ -0,0 +1,118 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+package common;
+
+import java.io.PrintStream;
+
+/**
+ * <p>Where the output of print statements goes.  The abstract machines and the
+ * interpreter print values here instead of straight to System.out, which takes a
+ * lock, and may write, for every little piece.</p>
+ *
+ * <p>Text collects in a buffer of bufferSize chars.  It goes to the underlying
+ * stream when the buffer fills, after every line under the Line policy, and on
+ * flush(), which the machines and the interpreter call when the program halts or
+ * stops with an error.  A bufferSize of 0 writes every piece straight through.  The
+ * stream does the encoding, so the bytes are the same as printing to it directly.</p>
+ */
+public class Output {
+    public enum Policy {
+        Line,   // flush at the end of every line
+        Full    // flush only when the buffer is full
+    }
+
+    public static final int defaultBufferSize = 8192;
+
+    public Output() {
+        this(System.out, defaultBufferSize, Policy.Full);
+    }
+
+    public Output(PrintStream out, int bufferSize, Policy policy) {
+        this.out = out;
+        this.bufferSize = bufferSize;
+        this.policy = policy;
+        buffer = new StringBuilder(Math.max(bufferSize, 16));
+        lineSeparator = System.lineSeparator();
+    }
+
+    public void print(String text) {
+        buffer.append(text);
+        written();
+    }
+
+    public void print(int value) {
+        buffer.append(value);
+        written();
+    }
+
+    public void print(boolean value) {
+        buffer.append(value);
+        written();
+    }
+
+    public void print(char value) {
+        buffer.append(value);
+        written();
+    }
+
+    public void println() {
+        buffer.append(lineSeparator);
+        if(policy == Policy.Line) {
+            flush();
+        }
+        else {
+            written();
+        }
+    }
+
+    public void flush() {
+        if(buffer.length() > 0) {
+            out.append(buffer);
+            buffer.setLength(0);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a policy name as given on a command line: line or full.
+     */
+    public static Policy policyNamed(String name) {
+        switch(name) {
+        case "line":
+            return Policy.Line;
+        case "full":
+            return Policy.Full;
+        default:
+            throw new RuntimeError("unknown flush policy " + name +
+                                   "; expected line or full");
+        }
+    }
+
+    private void written() {
+        if(buffer.length() >= bufferSize) {
+            out.append(buffer);
+            buffer.setLength(0);
+        }
+    }
+
+    private PrintStream out;
+    private int bufferSize;
+    private Policy policy;
+    private StringBuilder buffer;
+    private String lineSeparator;
+}
@@ -0,0 +1,79 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+package common;
+
+/**
+ * <p>The instructions of the register machine, the alternative to the stack machine
+ * described by ByteCodes.  Object files holding register code have major version 1.</p>
+ *
+ * <p>Every function call gets a window of registers.  A function's parameters are its
+ * first registers, its variables come next, and the temporaries the compiler needs
+ * for expressions follow those.  Like stack slots, every register holds a type and a
+ * value.  Code at the top level runs in the global window, which functions reach with
+ * GLoad and GStore.</p>
+ *
+ * <p>Operand layouts use the letters of ByteCodes plus 'g', a 2-byte register
+ * number.  In the comments d is a destination register and a and b are source
+ * registers.</p>
+ */
+public enum RegCodes {
+    Halt(""),       // 0x00
+    LoadI("gti"),   // 0x01   // d <- immediate of the given type
+    Mov("gg"),      // 0x02   // d <- a
+    GLoad("gg"),    // 0x03   // d <- global register a
+    GStore("gg"),   // 0x04   // global register d <- a
+    Add("ggg"),     // 0x05   // d <- a + b
+    Sub("ggg"),     // 0x06
+    Mul("ggg"),     // 0x07
+    Div("ggg"),     // 0x08
+    Rem("ggg"),     // 0x09
+    Pow("ggg"),     // 0x0a
+    Lt("ggg"),      // 0x0b   // d <- a < b
+    Lte("ggg"),     // 0x0c
+    Eq("ggg"),      // 0x0d
+    Neq("ggg"),     // 0x0e
+    Gte("ggg"),     // 0x0f
+    Gt("ggg"),      // 0x10
+    And("ggg"),     // 0x11
+    Or("ggg"),      // 0x12
+    Not("gg"),      // 0x13   // d <- not a
+    Print("g"),     // 0x14   // print a followed by a space
+    PrtLn(""),      // 0x15   // print a new line
+    Jmp("a"),       // 0x16   // jump unconditionally
+    JmpT("ga"),     // 0x17   // jump if a is true
+    JmpF("ga"),     // 0x18   // jump if a is false
+    Frame("ii"),    // 0x19   // size the window: parameter count, register count
+    Call("agg"),    // 0x1a   // call; callee's window starts at a, d gets the result
+    Ret("g"),       // 0x1b   // return a to the caller
+    NoRtn(""),      // 0x1c   // a function ran off its end without returning
+
+    ;
+
+    RegCodes(String operands) {
+        this.operands = operands;
+    }
+
+    /**
+     * The operand layout, one letter per operand, as described above.
+     */
+    public String getOperands() {
+        return operands;
+    }
+
+    private final String operands;
+}
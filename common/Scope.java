@@ -17,6 +17,8 @@
 
 package common;
 
+import java.util.HashMap;
+import java.util.Set;
 import java.util.Vector;
 
 import common.RuntimeError;
@@ -26,6 +28,7 @@ public class Scope {
     public Scope(Scope parent) {
         this.parent = parent;
         store = new Vector<String>();
+        indexes = new HashMap<String, Integer>();
     }
 
     public Scope getParent() {
@@ -33,23 +36,46 @@ public class Scope {
     }
 
     public Boolean contains(String name) {
-        if(parent == null && !store.contains(name)) {
-            return false;   
-        } else if(store.contains(name)) {
-            return true;
+        return find(name) != null;
+    }
+
+    /**
+     * Whether name is in this scope itself, not counting the scopes around it.
+     */
+    public Boolean holds(String name) {
+        return indexes.containsKey(name);
+    }
+
+    /**
+     * Where name is in this scope's names, or -1 if it isn't one of them.
+     */
+    public int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * The nearest scope, starting with this one, that holds name, or null if none
+     * does.
+     */
+    public Scope find(String name) {
+        for(Scope scope = this; scope != null; scope = scope.parent) {
+            if(scope.indexes.containsKey(name)) {
+                return scope;
+            }
         }
-        return parent.contains(name);
+        return null;
     }
 
     public void put(String name) {
         if(!contains(name)) {
-            store.add(name);
+            add(name);
         }
     }
 
     public void putShadow(String name) {
-        if(!store.contains(name)) {
-            store.add(name);
+        if(!holds(name)) {
+            add(name);
         }
     }
 
@@ -58,22 +84,47 @@ public class Scope {
     }
     
     public LookupPair get(String name) {
-        LookupPair rtn;
-        if(store.contains(name)) {
-            rtn = new LookupPair();
-            rtn.frames = 0;
-            rtn.offset = store.indexOf(name);
-        } else if(parent != null && parent.contains(name)) {
-            rtn = parent.get(name);
-            rtn.frames++;
-        }
-        else {
+        Scope defining = find(name);
+        if(defining == null) {
             throw new RuntimeError("Cannot find " + name + " in scopes");
         }
+        return get(name, defining);
+    }
+
+    /**
+     * The LookupPair for name, already known to be held by defining, which is this
+     * scope or one around it.
+     */
+    public LookupPair get(String name, Scope defining) {
+        return get(name, defining, null);
+    }
 
+    /**
+     * The LookupPair for name, held by defining, where the scopes in frameless get no
+     * frame of their own on the stack machine and so are not counted in its frames.
+     * frameless may be null if every scope has a frame.
+     */
+    public LookupPair get(String name, Scope defining, Set<Scope> frameless) {
+        LookupPair rtn = new LookupPair();
+        rtn.frames = 0;
+        for(Scope scope = this; scope != defining; scope = scope.parent) {
+            if(scope == null) {
+                throw new RuntimeError("Cannot find " + name + " in scopes");
+            }
+            if(frameless == null || !frameless.contains(scope)) {
+                rtn.frames++;
+            }
+        }
+        rtn.offset = defining.indexOf(name);
         return rtn;
     }
 
+    private void add(String name) {
+        indexes.put(name, store.size());
+        store.add(name);
+    }
+
     private Scope parent;
     private Vector<String> store;
+    private HashMap<String, Integer> indexes;
 }
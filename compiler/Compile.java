@@ -16,12 +16,26 @@
 */
 
 import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
 import org.antlr.v4.runtime.tree.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import common.BackPatch;
 import common.ByteCodes;
@@ -36,13 +50,59 @@ import parser.*;
 
 public class Compile extends StmntBaseVisitor<Integer> {
     public Compile(ParseTreeProperty<Scope> scopes) {
+        this(scopes, new Options());
+    }
+
+    public Compile(ParseTreeProperty<Scope> scopes, Options options) {
+        this.options = options;
         code = new CodeBuffer();
-        where = new HashMap<String, Integer>();
         backPatches = new BackPatch();
+        calls = backPatches;
         this.scopes = scopes;
-        stringPool = new HashMap<String, String>();
+        stringPool = new LinkedHashMap<String, Integer>();
         labelMaker = new Labeller();
         functionNameSpace = new HashMap<String, FuncMeta>();
+        declarations = new HashMap<String, StmntParser.FuncDeclContext>();
+        inlinable = new HashMap<StmntParser.FuncDeclContext, Boolean>();
+        closed = new HashMap<FuncMeta, Boolean>();
+        hoisted = new HashMap<ParseTree, Integer>();
+        bases = new HashMap<Scope, Integer>();
+        frameless = new HashSet<Scope>();
+        if(options.getPeephole() || options.getCompact()) {
+            peephole = new Peephole();
+        }
+        if(options.getCache() != null) {
+            cache = new SegmentCache(options.getCache());
+            fingerprints = new HashMap<StmntParser.FuncDeclContext, String>();
+        }
+    }
+
+    /**
+     * A Compile for the body of one of program's functions on its own, for
+     * compileFunctions.  It shares what program knows about the tree, and has its
+     * own code, starting at 0, its own labels and its own strings.  Only the
+     * functions declared up to fun can be called.
+     */
+    private Compile(Compile program, FuncMeta fun) {
+        options = program.options;
+        code = new CodeBuffer();
+        backPatches = new BackPatch();
+        calls = new BackPatch();
+        scopes = program.scopes;
+        stringPool = new LinkedHashMap<String, Integer>();
+        labelMaker = new Labeller();
+        functionNameSpace = program.functionNameSpace;
+        declarations = program.declarations;
+        inlinable = new HashMap<StmntParser.FuncDeclContext, Boolean>();
+        closed = new HashMap<FuncMeta, Boolean>();
+        hoisted = new HashMap<ParseTree, Integer>();
+        bases = new HashMap<Scope, Integer>();
+        frameless = new HashSet<Scope>();
+        constants = program.constants;
+        types = program.types;
+        definitions = program.definitions;
+        reachability = program.reachability;
+        visible = fun.getPosition();
     }
 
     @Override
@@ -54,67 +114,256 @@ public class Compile extends StmntBaseVisitor<Integer> {
         code.writeByte('s').writeByte('t').writeByte('m').writeByte('n').writeByte('t');
 
         // major version minor version
+        Integer minorVersionAt = code.getFinger() + 1;
         code.writeByte(0).writeByte(1);
 
-        String startHere = labelMaker.make("main");
+        int startHere = labelMaker.make();
         backPatches.addBackPatch(startHere, code.getFinger());
         code.writeInteger(0);
+        Integer codeStart = code.getFinger();
 
-        for(StmntParser.FuncDeclContext fctx : ctx.funcDecl()) {
-            visit(fctx);
+        if(cache != null || (options.getJobs() > 1 && ctx.funcDecl().size() > 1)) {
+            compileFunctions(ctx.funcDecl());
+        }
+        else {
+            for(StmntParser.FuncDeclContext fctx : ctx.funcDecl()) {
+                visit(fctx);
+            }
         }
 
-        where.put(startHere, code.getFinger());
+        backPatches.setAddress(startHere, code.getFinger());
 
+        // The global frame holds the top-level blocks' variables too.
         Vector<String> mutables = currentScope.getNames();
-        if(mutables.size() > 0)  {
-            code.writeByte(ByteCodes.Locals).writeInteger(mutables.size() * 2);
+        bases.put(currentScope, 0);
+        variableTop = mutables.size();
+        Integer slots = variableTop + nestedSlots(ctx.statement());
+        if(slots > 0)  {
+            code.writeByte(ByteCodes.Locals).writeInteger(slots * 2);
         }
 
         for(StmntParser.StatementContext sctx : ctx.statement()) {
-            answer = visit(sctx);
+            if(reaches(sctx)) {
+                answer = visit(sctx);
+            }
         }
         code.writeByte(ByteCodes.Halt);
 
-        // Dump the string pool past the end of the executable code
-        for(String key : stringPool.keySet()) {
-            where.put(key, code.getFinger());
-            code.writeString(stringPool.get(key));
+        if(peephole != null) {
+            peephole.optimize(code, codeStart, backPatches, options);
+        }
+
+        // Dump the string pool past the end of the executable code, in the order the
+        // strings were first used
+        for(Map.Entry<String, Integer> string : stringPool.entrySet()) {
+            backPatches.setAddress(string.getValue(), code.getFinger());
+            code.writeString(string.getKey());
             code.writeByte(0); // zero terminate strings in the image
         }
 
-        backPatches.doBackPatches(where, code);
+        backPatches.doBackPatches(code);
+
+        // Minor version 2 tells the abstract machine superinstructions are present, 3
+        // that compact forms may be too, 4 that typed forms may be as well, and 5
+        // that TailCall may be
+        if(usedTailCalls) {
+            code.putByte(5, minorVersionAt);
+        }
+        else if(usedTypedForms) {
+            code.putByte(4, minorVersionAt);
+        }
+        else if(peephole != null && peephole.getUsedCompactForms()) {
+            code.putByte(3, minorVersionAt);
+        }
+        else if(usedSuperinstructions) {
+            code.putByte(2, minorVersionAt);
+        }
 
         return answer;
     }
 
     @Override
     public Integer visitFuncDecl(StmntParser.FuncDeclContext ctx) {
+        FuncMeta fun = declare(ctx);
+        if(needsCode(ctx)) {
+            backPatches.setAddress(fun.getLabel(), code.getFinger());
+            emitFunction(ctx);
+        }
+        return 0;
+    }
+
+    private FuncMeta declare(StmntParser.FuncDeclContext ctx) {
         FuncMeta fun = new FuncMeta(labelMaker, ctx.ID());
         if(functionNameSpace.containsKey(fun.getInternalName())) {
             throw new RuntimeError("attempt to redefine function " + fun.getName() +
                                    " near " + ctx.getStart().getLine() + ":" +
                                    ctx.getStart().getCharPositionInLine());
         }
+        fun.setPosition(functionNameSpace.size());
         functionNameSpace.put(fun.getInternalName(), fun);
-        where.put(fun.getLabel(), code.getFinger());
+        declarations.put(fun.getInternalName(), ctx);
+        for(String name : fun.getParameters()) {
+            scopes.get(ctx).putShadow(name);
+        }
+        return fun;
+    }
+
+    /**
+     * A function that is never called, or inlined wherever it is, needs no code of its
+     * own.
+     */
+    private Boolean needsCode(StmntParser.FuncDeclContext ctx) {
+        return (reachability == null || reachability.isUsed(ctx)) && !inlinable(ctx);
+    }
 
-        String functionReturnLabel = labelMaker.make(fun.getInternalName() + "Return");
+    private void emitFunction(StmntParser.FuncDeclContext ctx) {
+        int functionReturnLabel = labelMaker.make();
         currentFunctionReturnLabel = functionReturnLabel;
 
         currentScope = scopes.get(ctx);
-
-        for(String name : fun.getParameters()) {
-            currentScope.putShadow(name);
-        }
         visit(ctx.block());
 
-        where.put(functionReturnLabel, code.getFinger());
+        backPatches.setAddress(functionReturnLabel, code.getFinger());
         code.writeByte(ByteCodes.Return);
         currentFunctionReturnLabel = null;
         currentScope = currentScope.getParent();
+    }
 
-        return 0;
+    /**
+     * <p>Compile the functions' bodies on the option's number of threads, each into a
+     * segment of its own, then link the segments into code in the order they were
+     * declared.  The image comes out the same as compiling them one after another.</p>
+     *
+     * <p>The functions are all declared first, so the errors are reported in the
+     * order a single thread would find them.  With a cache, a function whose
+     * fingerprint has a segment there takes that segment instead of being compiled,
+     * and the segments that are compiled are saved there.</p>
+     */
+    private void compileFunctions(List<StmntParser.FuncDeclContext> functions) {
+        List<FuncMeta> compiled = new Vector<FuncMeta>();
+        RuntimeError redefined = null;
+        for(StmntParser.FuncDeclContext fctx : functions) {
+            FuncMeta fun;
+            try {
+                fun = declare(fctx);
+            }
+            catch(RuntimeError err) {
+                redefined = err;
+                break;
+            }
+            if(needsCode(fctx)) {
+                compiled.add(fun);
+            }
+        }
+
+        Map<Integer, String> functionNames = new HashMap<Integer, String>();
+        for(FuncMeta fun : functionNameSpace.values()) {
+            functionNames.put(fun.getLabel(), fun.getInternalName());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(options.getJobs());
+        try {
+            List<Compile> segments = new Vector<Compile>();
+            List<String> saveAs = new Vector<String>();
+            List<Future<?>> results = new Vector<Future<?>>();
+            for(FuncMeta fun : compiled) {
+                StmntParser.FuncDeclContext fctx = declarations.get(fun.getInternalName());
+                String fingerprint = null;
+                Compile segment = null;
+                if(cache != null) {
+                    fingerprint = fingerprint(fctx, fun);
+                    byte[] saved = cache.load(fingerprint);
+                    if(saved != null) {
+                        segment = loadSegment(fun, saved);
+                        if(segment == null) {
+                            cache.discard(fingerprint);
+                        }
+                    }
+                }
+                if(segment != null) {
+                    segments.add(segment);
+                    saveAs.add(null);
+                    results.add(null);
+                    continue;
+                }
+                Compile fresh = new Compile(this, fun);
+                segments.add(fresh);
+                saveAs.add(fingerprint);
+                results.add(pool.submit(() -> fresh.emitFunction(fctx)));
+            }
+            for(int i = 0; i < segments.size(); i++) {
+                try {
+                    if(results.get(i) != null) {
+                        results.get(i).get();
+                    }
+                }
+                catch(ExecutionException e) {
+                    if(e.getCause() instanceof RuntimeError) {
+                        throw (RuntimeError)e.getCause();
+                    }
+                    throw new Error(e.getCause());
+                }
+                catch(InterruptedException e) {
+                    throw new Error(e);
+                }
+                if(saveAs.get(i) != null) {
+                    cache.store(saveAs.get(i), segments.get(i).saveSegment(functionNames));
+                }
+                link(segments.get(i), compiled.get(i));
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        if(redefined != null) {
+            throw redefined;
+        }
+    }
+
+    /**
+     * Put segment's code for fun at the end of ours.  Its labels are renumbered past
+     * ours and its references and label addresses moved with the code.  Its strings
+     * join the pool, taking the label of the same string if it's already there.
+     */
+    private void link(Compile segment, FuncMeta fun) {
+        int base = code.getFinger();
+        code.writeBuffer(segment.code);
+        backPatches.setAddress(fun.getLabel(), base);
+
+        int count = segment.labelMaker.getCount();
+        int first = labelMaker.make(count);
+        int[] labels = new int[count];
+        for(int label = 0; label < count; label++) {
+            labels[label] = first + label;
+        }
+        for(Map.Entry<String, Integer> string : segment.stringPool.entrySet()) {
+            Integer label = stringPool.get(string.getKey());
+            if(label == null) {
+                stringPool.put(string.getKey(), labels[string.getValue()]);
+            }
+            else {
+                labels[string.getValue()] = label;
+            }
+        }
+
+        for(int label = 0; label < count; label++) {
+            int address = segment.backPatches.getAddress(label);
+            if(address >= 0) {
+                backPatches.setAddress(labels[label], base + address);
+            }
+        }
+        for(int i = 0; i < segment.backPatches.getCount(); i++) {
+            backPatches.addBackPatch(labels[segment.backPatches.getLabel(i)],
+                                     base + segment.backPatches.getPosition(i));
+        }
+        for(int i = 0; i < segment.calls.getCount(); i++) {
+            calls.addBackPatch(segment.calls.getLabel(i), base + segment.calls.getPosition(i));
+        }
+
+        usedSuperinstructions |= segment.usedSuperinstructions;
+        usedTypedForms |= segment.usedTypedForms;
+        usedTailCalls |= segment.usedTailCalls;
     }
 
     @Override
@@ -133,10 +382,25 @@ public class Compile extends StmntBaseVisitor<Integer> {
 
     @Override
     public Integer visitAssign(StmntParser.AssignContext ctx) {
-        Integer value = visit(ctx.expression());
         String name = ctx.ID().getText();
+        StmntParser.AddContext sum = variableSum(ctx.expression());
+
+        if(sum != null) {
+            // x <- a + b
+            LookupPair a = locate(sum.left, ((StmntParser.IdContext)sum.left).ID().getText());
+            LookupPair b = locate(sum.right, ((StmntParser.IdContext)sum.right).ID().getText());
+            LookupPair x = locate(ctx, name);
+            code.writeByte(ByteCodes.MoveSum)
+                .writeInteger(a.frames).writeInteger(a.offset * 2)
+                .writeInteger(b.frames).writeInteger(b.offset * 2)
+                .writeInteger(x.frames).writeInteger(x.offset * 2);
+            usedSuperinstructions = true;
+            return 0;
+        }
+
+        Integer value = visit(ctx.expression());
 
-        LookupPair location = currentScope.get(name);
+        LookupPair location = locate(ctx, name);
         code.writeByte(ByteCodes.Move).writeInteger(location.frames)
             .writeInteger(location.offset * 2);
 
@@ -146,20 +410,36 @@ public class Compile extends StmntBaseVisitor<Integer> {
     @Override
     public Integer visitIfStmnt(StmntParser.IfStmntContext ctx) {
 
-        List<StmntParser.IfBlockContext> conditions = ctx.ifBlock();
-        Boolean hasElse = ctx.block() != null;
+        // Branches that can't run are left out, and a test that always holds makes its
+        // branch the else.
+        List<StmntParser.IfBlockContext> conditions = new Vector<StmntParser.IfBlockContext>();
+        StmntParser.BlockContext elseBody = ctx.block();
+        for(StmntParser.IfBlockContext ifBlock : ctx.ifBlock()) {
+            if(!reaches(ifBlock.body)) {
+                continue;
+            }
+            if(reachability != null && reachability.always(ifBlock.test)) {
+                elseBody = ifBlock.body;
+                break;
+            }
+            conditions.add(ifBlock);
+        }
+        if(elseBody != null && !reaches(elseBody)) {
+            elseBody = null;
+        }
+        Boolean hasElse = elseBody != null;
         Integer elseIfCount = conditions.size() - 1;
 
-        String ifEnd = labelMaker.make("ifEnd");
-        Vector<String> elseIfLabels = new Vector<String>();
+        int ifEnd = labelMaker.make();
+        Vector<Integer> elseIfLabels = new Vector<Integer>();
         for(int i = 0; i < elseIfCount; i++) {
-            elseIfLabels.add(labelMaker.make("elseIfBegin"));
+            elseIfLabels.add(labelMaker.make());
         }
-        String elseBegin = labelMaker.make("elseBegin");
+        int elseBegin = labelMaker.make();
 
         Integer index = 0;
         for(StmntParser.IfBlockContext ifBlock : conditions) {
-            String jmpOnTestFalse = ifEnd;
+            int jmpOnTestFalse = ifEnd;
 
             if(hasElse) {
                 jmpOnTestFalse  = elseBegin;
@@ -170,13 +450,10 @@ public class Compile extends StmntBaseVisitor<Integer> {
             }
 
             if(index > 0) {
-                where.put(elseIfLabels.get(index - 1), code.getFinger());
+                backPatches.setAddress(elseIfLabels.get(index - 1), code.getFinger());
             }
 
-            visit(ifBlock.test);
-            code.writeByte(ByteCodes.JmpF);
-            backPatches.addBackPatch(jmpOnTestFalse, code.getFinger());
-            code.writeInteger(0);
+            emitTest(ifBlock.test, jmpOnTestFalse);
 
             visit(ifBlock.body);
             if(hasElse || (index < elseIfCount)) {
@@ -189,12 +466,12 @@ public class Compile extends StmntBaseVisitor<Integer> {
         }
 
         if(hasElse) {
-            where.put(elseBegin, code.getFinger());
+            backPatches.setAddress(elseBegin, code.getFinger());
 
-            visit(ctx.block());
+            visit(elseBody);
         }
 
-        where.put(ifEnd, code.getFinger());
+        backPatches.setAddress(ifEnd, code.getFinger());
 
         return 0;
     }
@@ -202,26 +479,147 @@ public class Compile extends StmntBaseVisitor<Integer> {
     @Override
     public Integer visitWhileStmnt(StmntParser.WhileStmntContext ctx) {
 
-        String whileBegin = labelMaker.make("whileBegin");
-        String whileEnd = labelMaker.make("whileEnd");
-
-        where.put(whileBegin, code.getFinger());
+        int whileBegin = labelMaker.make();
+        int whileEnd = labelMaker.make();
+
+        // Work out the loop's invariant expressions once, into slots of their own,
+        // and copy them from there inside the loop.  So they are only worked out if
+        // the loop runs at all, such a loop is turned around: tested once in front,
+        // then the body followed by the test.
+        Integer savedVariableTop = variableTop;
+        List<ParseTree> invariants = invariants(ctx);
+        if(!invariants.isEmpty()) {
+            emitTest(ctx.test, whileEnd);
+        }
+        for(ParseTree invariant : invariants) {
+            visit(invariant);
+            code.writeByte(ByteCodes.Move).writeInteger(argumentDepth)
+                .writeInteger(variableTop * 2);
+            hoisted.put(invariant, variableTop);
+            variableTop++;
+        }
 
-        visit(ctx.test);
-        code.writeByte(ByteCodes.JmpF);
-        backPatches.addBackPatch(whileEnd, code.getFinger());
-        code.writeInteger(0);
+        backPatches.setAddress(whileBegin, code.getFinger());
 
-        visit(ctx.body);
+        if(invariants.isEmpty()) {
+            emitTest(ctx.test, whileEnd);
+            visit(ctx.body);
+        }
+        else {
+            visit(ctx.body);
+            emitTest(ctx.test, whileEnd);
+        }
         code.writeByte(ByteCodes.Jmp);
         backPatches.addBackPatch(whileBegin, code.getFinger());
         code.writeInteger(0);
 
-        where.put(whileEnd, code.getFinger());
+        backPatches.setAddress(whileEnd, code.getFinger());
+
+        for(ParseTree invariant : invariants) {
+            hoisted.remove(invariant);
+        }
+        variableTop = savedVariableTop;
 
         return 0;
     }
 
+    /**
+     * <p>The expressions in loop to compute once before it: the largest arithmetic
+     * ones that don't change while it runs and can't fail.  Their variables must be
+     * integers, going by type inference, that nothing in the loop assigns, and they
+     * may only divide by constants other than 0.  A loop calling a function that
+     * isn't inlined gets none, since the function might assign anything.</p>
+     */
+    private List<ParseTree> invariants(StmntParser.WhileStmntContext loop) {
+        List<ParseTree> answer = new Vector<ParseTree>();
+        Set<String> assigned = new HashSet<String>();
+        if(options.getHoisting() && types != null && assignments(loop, assigned)) {
+            findInvariants(loop, assigned, answer);
+        }
+        return answer;
+    }
+
+    /**
+     * Add the names tree assigns to assigned.  Returns false if tree calls a function
+     * that isn't inlined.
+     */
+    private Boolean assignments(ParseTree tree, Set<String> assigned) {
+        if(tree instanceof StmntParser.FuncCallContext &&
+           !inlinable(declarationOf((StmntParser.FuncCallContext)tree))) {
+            return false;
+        }
+        if(tree instanceof StmntParser.AssignContext) {
+            assigned.add(((StmntParser.AssignContext)tree).ID().getText());
+        }
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            if(!assignments(tree.getChild(i), assigned)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void findInvariants(ParseTree tree, Set<String> assigned, List<ParseTree> found) {
+        if(hoisted.containsKey(tree)) {
+            // An outer loop has it already.
+            return;
+        }
+        if((tree instanceof StmntParser.AddContext || tree instanceof StmntParser.MultContext ||
+            tree instanceof StmntParser.PowerContext) &&
+           constantOf(tree) == null && invariant(tree, assigned)) {
+            found.add(tree);
+            return;
+        }
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            findInvariants(tree.getChild(i), assigned, found);
+        }
+    }
+
+    private Boolean invariant(ParseTree tree, Set<String> assigned) {
+        ConstantFolder.Constant known = constantOf(tree);
+        if(known != null) {
+            return known.type == RuntimeType.iInteger;
+        }
+        if(tree instanceof StmntParser.IdContext) {
+            return !assigned.contains(((StmntParser.IdContext)tree).ID().getText()) &&
+                types.typeOf(tree) == RuntimeType.iInteger;
+        }
+        if(tree instanceof StmntParser.ArithGroupContext) {
+            return invariant(((StmntParser.ArithGroupContext)tree).arithExp(), assigned);
+        }
+        if(tree instanceof StmntParser.AddContext) {
+            StmntParser.AddContext add = (StmntParser.AddContext)tree;
+            return invariant(add.left, assigned) && invariant(add.right, assigned);
+        }
+        if(tree instanceof StmntParser.PowerContext) {
+            StmntParser.PowerContext power = (StmntParser.PowerContext)tree;
+            return invariant(power.left, assigned) && invariant(power.right, assigned);
+        }
+        if(tree instanceof StmntParser.MultContext) {
+            StmntParser.MultContext mult = (StmntParser.MultContext)tree;
+            if(!mult.op.getText().equals("*")) {
+                ConstantFolder.Constant divisor = constantOf(mult.right);
+                if(divisor == null || divisor.value == 0) {
+                    return false;
+                }
+            }
+            return invariant(mult.left, assigned) && invariant(mult.right, assigned);
+        }
+        return false;
+    }
+
+    /**
+     * Copy ctx's value from its slot if it was computed before the loop around it.
+     */
+    private Boolean copyHoisted(ParseTree ctx) {
+        Integer slot = hoisted.get(ctx);
+        if(slot == null) {
+            return false;
+        }
+        code.writeByte(ByteCodes.Copy).writeInteger(argumentDepth).writeInteger(slot * 2);
+        return true;
+    }
+
     @Override
     public Integer visitExpressionStmnt(StmntParser.ExpressionStmntContext ctx) {
         Integer answer = visit(ctx.expression());
@@ -232,33 +630,80 @@ public class Compile extends StmntBaseVisitor<Integer> {
     @Override
     public Integer visitBlock(StmntParser.BlockContext ctx) { 
         currentScope = scopes.get(ctx);
-        code.writeByte(ByteCodes.Enter);
-        blockDepth++;
-
         Vector<String> mutables = currentScope.getNames();
-        if(mutables.size() > 0)  {
-            code.writeByte(ByteCodes.Locals).writeInteger(mutables.size() * 2);
+        Integer savedVariableTop = variableTop;
+
+        // Only a function's body gets a frame.  Every block inside it, or in the
+        // top-level code, keeps its variables in slots of the frame around it, so
+        // running a block costs no Enter or Exit.
+        Boolean framed = ctx.getParent() instanceof StmntParser.FuncDeclContext &&
+            inlineEnd == null;
+
+        if(framed) {
+            frameless.remove(currentScope);
+            code.writeByte(ByteCodes.Enter);
+            blockDepth++;
+            variableTop = 0;
+            bases.put(currentScope, variableTop);
+            variableTop += mutables.size();
+
+            Integer slots = variableTop + nestedSlots(ctx.statement());
+            if(slots > 0)  {
+                code.writeByte(ByteCodes.Locals).writeInteger(slots * 2);
+            }
+        }
+        else {
+            frameless.add(currentScope);
+            bases.put(currentScope, variableTop);
+            variableTop += mutables.size();
+
+            // The slots are shared with other blocks, so clear the ones that might be
+            // read before they're assigned, as Locals would.
+            for(String name : mutables) {
+                if(!assignedFirst(ctx, name)) {
+                    LookupPair location = locate(null, name);
+                    code.writeByte(ByteCodes.Push).writeByte(RuntimeType.iInteger)
+                        .writeInteger(0);
+                    code.writeByte(ByteCodes.Move).writeInteger(location.frames)
+                        .writeInteger(location.offset * 2);
+                }
+            }
         }
 
         for(StmntParser.StatementContext sctx : ctx.statement()) {
-            visit(sctx);
+            if(reaches(sctx)) {
+                visit(sctx);
+            }
         }
 
-        blockDepth--;
-        code.writeByte(ByteCodes.Exit);
+        if(framed) {
+            blockDepth--;
+            code.writeByte(ByteCodes.Exit);
+        }
+        variableTop = savedVariableTop;
         currentScope = currentScope.getParent();
         return 0;
     }
 
     @Override
     public Integer visitReturnStmnt(StmntParser.ReturnStmntContext ctx) {
+        if(inlineEnd != null) {
+            // The value stays on the stack as the inlined call's.
+            visit(ctx.expression());
+            code.writeByte(ByteCodes.Jmp);
+            backPatches.addBackPatch(inlineEnd, code.getFinger());
+            code.writeInteger(0);
+            return 0;
+        }
+
+        StmntParser.FuncCallContext call = tailCall(ctx.expression());
+        if(call != null) {
+            emitTailCall(call);
+            return 0;
+        }
+
         visit(ctx.expression());
         code.writeByte(ByteCodes.SetRtn);
-        if(blockDepth > 1) {
-            for(Integer exits = blockDepth - 1; exits > 0; exits--) {
-                code.writeByte(ByteCodes.Exit);
-            }
-        }
         code.writeByte(ByteCodes.Jmp);
         backPatches.addBackPatch(currentFunctionReturnLabel, code.getFinger());
         code.writeInteger(0);
@@ -285,18 +730,20 @@ public class Compile extends StmntBaseVisitor<Integer> {
         
     // }
 
-    @Override
-    public Integer visitFuncCall(StmntParser.FuncCallContext ctx) {
+    /**
+     * The function ctx calls, after checking that it exists and gets the right
+     * number of arguments.
+     */
+    private FuncMeta callee(StmntParser.FuncCallContext ctx) {
         String name = ctx.ID().getText();
         List<StmntParser.ExpressionContext> args = ctx.expression();
         String internalName = String.format("%s\\%d", name, args.size());
 
-        if(!functionNameSpace.containsKey(internalName)) {
+        FuncMeta fun = function(internalName);
+        if(fun == null) {
             throw new RuntimeError("cannot find function named " + name);
         }
 
-        FuncMeta fun = functionNameSpace.get(internalName);
-
         Integer parametersSize = fun.getParameters().size();
         if(args.size() != parametersSize) {
             Integer line = ctx.getStart().getLine();
@@ -307,30 +754,458 @@ public class Compile extends StmntBaseVisitor<Integer> {
                                    args.size());
         }
 
-        String functionExit = labelMaker.make("functionExit");
+        return fun;
+    }
+
+    /**
+     * The call that is the whole of a return statement's expression, if it can be
+     * made as a tail call.  Only returns in a function's frame qualify, and the
+     * callee must be closed, since its outer variables would otherwise be looked
+     * for in the wrong frames.
+     */
+    private StmntParser.FuncCallContext tailCall(StmntParser.ExpressionContext expression) {
+        if(!options.getTailCalls() || blockDepth != 1 ||
+           !(expression instanceof StmntParser.ArithEContext)) {
+            return null;
+        }
+        StmntParser.ArithExpContext arith = ((StmntParser.ArithEContext)expression).arithExp();
+        if(!(arith instanceof StmntParser.FuncCallContext)) {
+            return null;
+        }
+        StmntParser.FuncCallContext call = (StmntParser.FuncCallContext)arith;
+        FuncMeta fun = function(String.format("%s\\%d", call.ID().getText(),
+                                               call.expression().size()));
+        if(fun == null || inlinable(declarations.get(fun.getInternalName())) || !closed(fun)) {
+            return null;
+        }
+        return call;
+    }
+
+    /**
+     * <p>Whether fun, and every function it calls, uses only its own parameters and
+     * variables.  Outer variables are found by following the frames of the calls
+     * that led to a function, and a tail call takes its caller's frame away.</p>
+     *
+     * <p>A function can call only itself and the functions declared before it, so
+     * this always comes to an end.</p>
+     */
+    private Boolean closed(FuncMeta fun) {
+        Boolean answer = closed.get(fun);
+        if(answer == null) {
+            StmntParser.FuncDeclContext declaration = declarations.get(fun.getInternalName());
+            Scope scope = scopes.get(declaration);
+            List<StmntParser.FuncCallContext> made = new Vector<StmntParser.FuncCallContext>();
+            answer = selfContained(declaration.block(), scope, scope, made);
+            for(StmntParser.FuncCallContext call : made) {
+                if(!answer) {
+                    break;
+                }
+                FuncMeta callee = functionNameSpace.get(String.format("%s\\%d",
+                                                                      call.ID().getText(),
+                                                                      call.expression().size()));
+                answer = callee == fun || (callee != null &&
+                                           callee.getPosition() < fun.getPosition() &&
+                                           closed(callee));
+            }
+            closed.put(fun, answer);
+        }
+        return answer;
+    }
+
+    /**
+     * Evaluate the arguments in the current frame and have them replace the current
+     * function's arguments.  The callee then returns straight to our caller.
+     */
+    private void emitTailCall(StmntParser.FuncCallContext ctx) {
+        FuncMeta fun = callee(ctx);
+        List<StmntParser.ExpressionContext> args = ctx.expression();
 
-        // make room for the return value
-        code.writeByte(ByteCodes.Push).writeByte(RuntimeType.iInteger).writeInteger(-1);
+        for(StmntParser.ExpressionContext arg : args) {
+            visit(arg);
+        }
 
-        // push return instruction pointer
-        code.writeByte(ByteCodes.Push).writeByte(RuntimeType.iInteger);
-        backPatches.addBackPatch(functionExit, code.getFinger());
+        code.writeByte(ByteCodes.TailCall).writeInteger(args.size() * 2);
+        calls.addBackPatch(fun.getLabel(), code.getFinger());
         code.writeInteger(0);
+        usedTailCalls = true;
+    }
+
+    /**
+     * Compile the body of fun in place of the call ctx.  The parameters and the
+     * body's variables take slots in the current frame, and a return leaves its value
+     * on the stack and jumps past the body.
+     */
+    private void inline(StmntParser.FuncCallContext ctx, StmntParser.FuncDeclContext fun) {
+        List<StmntParser.ExpressionContext> args = ctx.expression();
+        for(StmntParser.ExpressionContext arg : args) {
+            visit(arg);
+        }
+
+        // The slots are in the frame of the function being compiled, which is a frame
+        // further away for each call whose arguments are being worked out.
+        Scope scope = scopes.get(fun);
+        Integer savedVariableTop = variableTop;
+        bases.put(scope, variableTop);
+        for(int i = args.size() - 1; i >= 0; i--) {
+            Integer offset = variableTop + scope.indexOf(fun.ID(i + 1).getText());
+            code.writeByte(ByteCodes.Move).writeInteger(argumentDepth).writeInteger(offset * 2);
+        }
+        variableTop += scope.getNames().size();
+
+        Scope savedScope = currentScope;
+        currentScope = scope;
+        inlineEnd = labelMaker.make();
+        visit(fun.block());
+        backPatches.setAddress(inlineEnd, code.getFinger());
+        inlineEnd = null;
+        currentScope = savedScope;
+        variableTop = savedVariableTop;
+    }
+
+    /**
+     * <p>Whether calls to fun are compiled as its body.  It has to be small, set by
+     * the -inline option, and return a value on every path.  It must not call any
+     * function, so it can't be recursive, and it may use only its parameters and its
+     * own variables, so the body means the same wherever it is put.</p>
+     */
+    private Boolean inlinable(StmntParser.FuncDeclContext fun) {
+        if(fun == null) {
+            return false;
+        }
+        Boolean answer = inlinable.get(fun);
+        if(answer == null) {
+            Scope scope = scopes.get(fun);
+            answer = statementCount(fun.block()) <= options.getInlineLimit() &&
+                returns(fun.block().statement()) &&
+                selfContained(fun.block(), scope, scope, null);
+            inlinable.put(fun, answer);
+        }
+        return answer;
+    }
+
+    private StmntParser.FuncDeclContext declarationOf(StmntParser.FuncCallContext call) {
+        FuncMeta fun = function(String.format("%s\\%d", call.ID().getText(),
+                                               call.expression().size()));
+        return fun == null ? null : declarations.get(fun.getInternalName());
+    }
+
+    /**
+     * <p>The fingerprint of fun's segment: its source and everything else its code
+     * depends on.  That is the options, and for each node of the body what the
+     * constant folder, type inference and dead code analysis found.  It also covers
+     * the slots of the globals the function uses, and which functions it calls.  An
+     * inlined callee adds its own fingerprint.</p>
+     *
+     * <p>Calls are linked by name, so the callee's code and where it ends up don't
+     * matter.</p>
+     */
+    private String fingerprint(StmntParser.FuncDeclContext fctx, FuncMeta fun) {
+        String answer = fingerprints.get(fctx);
+        if(answer == null) {
+            StringBuilder description = new StringBuilder(options.getCodeSignature());
+            Token start = fctx.getStart();
+            Token stop = fctx.getStop();
+            description.append('\n').append(start.getInputStream().getText(
+                Interval.of(start.getStartIndex(), stop.getStopIndex())));
+            Scope scope = scopes.get(fctx);
+            describe(fctx, fun.getPosition(), scope.getParent(), scope, description);
+            answer = cache.fingerprint(description.toString());
+            fingerprints.put(fctx, answer);
+        }
+        return answer;
+    }
+
+    private void describe(ParseTree tree, Integer position, Scope global, Scope scope,
+                          StringBuilder description) {
+        if(!(tree instanceof ParserRuleContext)) {
+            return;
+        }
+        if(scopes.get(tree) != null) {
+            scope = scopes.get(tree);
+        }
+
+        description.append('\n');
+        ConstantFolder.Constant known = constantOf(tree);
+        if(known != null) {
+            description.append(known.type).append(' ').append(known.value);
+        }
+        if(types != null) {
+            description.append(' ').append(types.typeOf(tree));
+        }
+        if(!reaches(tree)) {
+            description.append(" dead");
+        }
+
+        String name = null;
+        if(tree instanceof StmntParser.IdContext) {
+            name = ((StmntParser.IdContext)tree).ID().getText();
+        }
+        else if(tree instanceof StmntParser.LogicIdContext) {
+            name = ((StmntParser.LogicIdContext)tree).ID().getText();
+        }
+        else if(tree instanceof StmntParser.AssignContext) {
+            name = ((StmntParser.AssignContext)tree).ID().getText();
+        }
+        if(name != null) {
+            Scope defining = definitions == null ? null : definitions.get(tree);
+            if(defining == null) {
+                defining = scope.find(name);
+            }
+            if(defining == null) {
+                description.append(" undefined");
+            }
+            else if(defining == global) {
+                description.append(" global ").append(global.indexOf(name));
+            }
+        }
+
+        if(tree instanceof StmntParser.FuncCallContext) {
+            StmntParser.FuncCallContext call = (StmntParser.FuncCallContext)tree;
+            FuncMeta callee = functionNameSpace.get(String.format("%s\\%d",
+                                                                  call.ID().getText(),
+                                                                  call.expression().size()));
+            if(callee == null || callee.getPosition() > position) {
+                description.append(" missing");
+            }
+            else {
+                StmntParser.FuncDeclContext declaration =
+                    declarations.get(callee.getInternalName());
+                description.append(" calls ").append(callee.getInternalName());
+                if(inlinable(declaration)) {
+                    description.append(" inlines ").append(fingerprint(declaration, callee));
+                }
+                else if(closed(callee)) {
+                    description.append(" closed");
+                }
+            }
+        }
+
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            describe(tree.getChild(i), position, global, scope, description);
+        }
+    }
+
+    /**
+     * The segment's code, labels, references and strings, to be read back by
+     * loadSegment.  Calls keep the callee's name, since labels change from one
+     * compile to the next.
+     */
+    private byte[] saveSegment(Map<Integer, String> functionNames) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeBoolean(usedSuperinstructions);
+            out.writeBoolean(usedTypedForms);
+            out.writeBoolean(usedTailCalls);
+            out.writeInt(code.size());
+            code.writeTo(out);
+            out.writeInt(labelMaker.getCount());
+            for(int label = 0; label < labelMaker.getCount(); label++) {
+                out.writeInt(backPatches.getAddress(label));
+            }
+            out.writeInt(backPatches.getCount());
+            for(int i = 0; i < backPatches.getCount(); i++) {
+                out.writeInt(backPatches.getLabel(i));
+                out.writeInt(backPatches.getPosition(i));
+            }
+            out.writeInt(calls.getCount());
+            for(int i = 0; i < calls.getCount(); i++) {
+                out.writeUTF(functionNames.get(calls.getLabel(i)));
+                out.writeInt(calls.getPosition(i));
+            }
+            out.writeInt(stringPool.size());
+            for(Map.Entry<String, Integer> string : stringPool.entrySet()) {
+                byte[] text = string.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(text.length);
+                out.write(text);
+                out.writeInt(string.getValue());
+            }
+            out.flush();
+        }
+        catch(IOException e) {
+            throw new Error(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A segment for fun read back from what saveSegment wrote, or null if saved can't
+     * be read or calls a function this program doesn't have.
+     */
+    private Compile loadSegment(FuncMeta fun, byte[] saved) {
+        Compile segment = new Compile(this, fun);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(saved));
+        try {
+            segment.usedSuperinstructions = in.readBoolean();
+            segment.usedTypedForms = in.readBoolean();
+            segment.usedTailCalls = in.readBoolean();
+            byte[] code = new byte[in.readInt()];
+            in.readFully(code);
+            segment.code.writeBytes(code);
+            int count = in.readInt();
+            segment.labelMaker.make(count);
+            for(int label = 0; label < count; label++) {
+                int address = in.readInt();
+                if(address >= 0) {
+                    segment.backPatches.setAddress(label, address);
+                }
+            }
+            for(int i = in.readInt(); i > 0; i--) {
+                int label = in.readInt();
+                segment.backPatches.addBackPatch(label, in.readInt());
+            }
+            for(int i = in.readInt(); i > 0; i--) {
+                FuncMeta callee = functionNameSpace.get(in.readUTF());
+                if(callee == null) {
+                    return null;
+                }
+                segment.calls.addBackPatch(callee.getLabel(), in.readInt());
+            }
+            for(int i = in.readInt(); i > 0; i--) {
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                segment.stringPool.put(new String(text, StandardCharsets.UTF_8),
+                                       in.readInt());
+            }
+        }
+        catch(IOException | RuntimeException e) {
+            return null;
+        }
+        return segment;
+    }
+
+    /**
+     * The function called internalName, if it is declared where the code being
+     * compiled can see it.
+     */
+    private FuncMeta function(String internalName) {
+        FuncMeta fun = functionNameSpace.get(internalName);
+        if(fun == null || (visible != null && fun.getPosition() > visible)) {
+            return null;
+        }
+        return fun;
+    }
+
+    private Integer statementCount(ParseTree tree) {
+        Integer answer = tree instanceof StmntParser.StatementContext ? 1 : 0;
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            answer += statementCount(tree.getChild(i));
+        }
+        return answer;
+    }
+
+    /**
+     * Whether running statements always ends in a return.
+     */
+    private Boolean returns(List<StmntParser.StatementContext> statements) {
+        for(StmntParser.StatementContext statement : statements) {
+            if(statement instanceof StmntParser.ReturnStmntContext) {
+                return true;
+            }
+            if(statement instanceof StmntParser.IfStmntContext) {
+                StmntParser.IfStmntContext ifStmnt = (StmntParser.IfStmntContext)statement;
+                Boolean all = ifStmnt.block() != null && returns(ifStmnt.block().statement());
+                for(StmntParser.IfBlockContext branch : ifStmnt.ifBlock()) {
+                    all = all && returns(branch.body.statement());
+                }
+                if(all) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether tree, in scope, uses only variables defined in function's scope or
+     * inside it.  With calls null it must call nothing as well, otherwise the calls
+     * it makes are added to calls.
+     */
+    private Boolean selfContained(ParseTree tree, Scope scope, Scope function,
+                                  List<StmntParser.FuncCallContext> calls) {
+        if(tree instanceof StmntParser.FuncCallContext) {
+            if(calls == null) {
+                return false;
+            }
+            calls.add((StmntParser.FuncCallContext)tree);
+        }
+        if(tree instanceof StmntParser.BlockContext) {
+            scope = scopes.get(tree);
+        }
+
+        String name = null;
+        if(tree instanceof StmntParser.IdContext) {
+            name = ((StmntParser.IdContext)tree).ID().getText();
+        }
+        else if(tree instanceof StmntParser.LogicIdContext) {
+            name = ((StmntParser.LogicIdContext)tree).ID().getText();
+        }
+        else if(tree instanceof StmntParser.AssignContext) {
+            name = ((StmntParser.AssignContext)tree).ID().getText();
+        }
+        if(name != null) {
+            Scope defining = scope;
+            while(!defining.holds(name)) {
+                if(defining == function) {
+                    return false;
+                }
+                defining = defining.getParent();
+            }
+        }
+
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            if(!selfContained(tree.getChild(i), scope, function, calls)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Integer visitFuncCall(StmntParser.FuncCallContext ctx) {
+        FuncMeta fun = callee(ctx);
+        List<StmntParser.ExpressionContext> args = ctx.expression();
+
+        StmntParser.FuncDeclContext declaration = declarations.get(fun.getInternalName());
+        if(inlinable(declaration)) {
+            inline(ctx, declaration);
+            return 0;
+        }
 
-        code.writeByte(ByteCodes.Enter);
+        int functionExit = labelMaker.make();
+
+        if(options.getSuperinstructions()) {
+            code.writeByte(ByteCodes.CallPrep);
+            backPatches.addBackPatch(functionExit, code.getFinger());
+            code.writeInteger(0);
+            usedSuperinstructions = true;
+        }
+        else {
+            // make room for the return value
+            code.writeByte(ByteCodes.Push).writeByte(RuntimeType.iInteger).writeInteger(-1);
+
+            // push return instruction pointer
+            code.writeByte(ByteCodes.Push).writeByte(RuntimeType.iInteger);
+            backPatches.addBackPatch(functionExit, code.getFinger());
+            code.writeInteger(0);
+
+            code.writeByte(ByteCodes.Enter);
+        }
 
         currentScope = new Scope(currentScope);
+        argumentDepth++;
 
         for(StmntParser.ExpressionContext arg : args) {
             visit(arg);
         }
 
+        argumentDepth--;
         currentScope = currentScope.getParent();
         code.writeByte(ByteCodes.Call);
-        backPatches.addBackPatch(fun.getLabel(), code.getFinger());
+        calls.addBackPatch(fun.getLabel(), code.getFinger());
         code.writeInteger(0);
 
-        where.put(functionExit, code.getFinger());
+        backPatches.setAddress(functionExit, code.getFinger());
         code.writeByte(ByteCodes.Exit);
         code.writeByte(ByteCodes.Pop); // get rid of return instruction pointer
 
@@ -339,25 +1214,37 @@ public class Compile extends StmntBaseVisitor<Integer> {
 
     @Override
     public Integer visitPower(StmntParser.PowerContext ctx) {
+        if(pushConstant(ctx) || copyHoisted(ctx)) {
+            return 0;
+        }
+
         visit(ctx.left);
         visit(ctx.right);
-        code.writeByte(ByteCodes.Pow);
+        code.writeByte(typed(ByteCodes.Pow, ByteCodes.IPow, RuntimeType.iInteger,
+                             ctx.left, ctx.right));
         return 0;
     }
 
     @Override
     public Integer visitMult(StmntParser.MultContext ctx) {
+        if(pushConstant(ctx) || copyHoisted(ctx)) {
+            return 0;
+        }
+
         visit(ctx.left);
         visit(ctx.right);
         String op = ctx.op.getText();
         if(op.equals("*")) {
-            code.writeByte(ByteCodes.Mul);
+            code.writeByte(typed(ByteCodes.Mul, ByteCodes.IMul, RuntimeType.iInteger,
+                                 ctx.left, ctx.right));
         }
         else if(op.equals("div")) {
-            code.writeByte(ByteCodes.Div);
+            code.writeByte(typed(ByteCodes.Div, ByteCodes.IDiv, RuntimeType.iInteger,
+                                 ctx.left, ctx.right));
         }
         else {
-            code.writeByte(ByteCodes.Rem);
+            code.writeByte(typed(ByteCodes.Rem, ByteCodes.IRem, RuntimeType.iInteger,
+                                 ctx.left, ctx.right));
         }
 
         return 0;
@@ -365,14 +1252,20 @@ public class Compile extends StmntBaseVisitor<Integer> {
 
     @Override
     public Integer visitAdd(StmntParser.AddContext ctx) {
+        if(pushConstant(ctx) || copyHoisted(ctx)) {
+            return 0;
+        }
+
         visit(ctx.left);
         visit(ctx.right);
         String op = ctx.op.getText();
         if(op.equals("+")) {
-            code.writeByte(ByteCodes.Add);
+            code.writeByte(typed(ByteCodes.Add, ByteCodes.IAdd, RuntimeType.iInteger,
+                                 ctx.left, ctx.right));
         }
         else {
-            code.writeByte(ByteCodes.Sub);
+            code.writeByte(typed(ByteCodes.Sub, ByteCodes.ISub, RuntimeType.iInteger,
+                                 ctx.left, ctx.right));
         }
         return 0;
     }
@@ -387,9 +1280,13 @@ public class Compile extends StmntBaseVisitor<Integer> {
 
     @Override
     public Integer visitId(StmntParser.IdContext ctx) {
+        if(pushConstant(ctx)) {
+            return 0;
+        }
+
         String name = ctx.ID().getText();
 
-        LookupPair location = currentScope.get(name);
+        LookupPair location = locate(ctx, name);
         code.writeByte(ByteCodes.Copy).writeInteger(location.frames)
             .writeInteger(location.offset * 2);
 
@@ -401,19 +1298,11 @@ public class Compile extends StmntBaseVisitor<Integer> {
         String value = ctx.STRING().getText();
         value = value.substring(1);
         value = value.substring(0, value.length() - 1);
-        value = value.intern();
 
-        String label = null;
-        if(!stringPool.containsValue(value)) {
-            label = labelMaker.make("string");
-            stringPool.put(label, value);
-        }
-        else {
-            for(String key : stringPool.keySet()) {
-                if(stringPool.get(key) == value) {
-                    label = key;
-                }
-            }
+        Integer label = stringPool.get(value);
+        if(label == null) {
+            label = labelMaker.make();
+            stringPool.put(value, label);
         }
 
         code.writeByte(ByteCodes.Push).writeByte(RuntimeType.iString);
@@ -425,32 +1314,57 @@ public class Compile extends StmntBaseVisitor<Integer> {
 
     @Override
     public Integer visitLogicNot(StmntParser.LogicNotContext ctx) {
+        if(pushConstant(ctx)) {
+            return 0;
+        }
+
         visit(ctx.logicExp());
-        code.writeByte(ByteCodes.Not);
+        code.writeByte(typed(ByteCodes.Not, ByteCodes.BNot, RuntimeType.iBoolean,
+                             ctx.logicExp()));
         return 0;
     }
 
     @Override
     public Integer visitLogicAnd(StmntParser.LogicAndContext ctx) {
+        if(pushConstant(ctx)) {
+            return 0;
+        }
+        if(options.getShortCircuit()) {
+            return shortCircuit(ctx);
+        }
+
         visit(ctx.left);
         visit(ctx.right);
-        code.writeByte(ByteCodes.And);
+        code.writeByte(typed(ByteCodes.And, ByteCodes.BAnd, RuntimeType.iBoolean,
+                             ctx.left, ctx.right));
         return 0;
     }
 
     @Override
     public Integer visitLogicOr(StmntParser.LogicOrContext ctx) {
+        if(pushConstant(ctx)) {
+            return 0;
+        }
+        if(options.getShortCircuit()) {
+            return shortCircuit(ctx);
+        }
+
         visit(ctx.left);
         visit(ctx.right);
-        code.writeByte(ByteCodes.Or);
+        code.writeByte(typed(ByteCodes.Or, ByteCodes.BOr, RuntimeType.iBoolean,
+                             ctx.left, ctx.right));
         return 0;
     }
 
     @Override
     public Integer visitLogicId(StmntParser.LogicIdContext ctx) {
+        if(pushConstant(ctx)) {
+            return 0;
+        }
+
         String name = ctx.ID().getText();
 
-        LookupPair here = currentScope.get(name);
+        LookupPair here = locate(ctx, name);
         code.writeByte(ByteCodes.Copy).writeInteger(here.frames)
             .writeInteger(here.offset * 2);
 
@@ -473,6 +1387,24 @@ public class Compile extends StmntBaseVisitor<Integer> {
 
     @Override
     public Integer visitIntRelExp(StmntParser.IntRelExpContext ctx) {
+        if(pushConstant(ctx)) {
+            return 0;
+        }
+
+        visit(ctx.left);
+        visit(ctx.right);
+        ByteCodes relation = relation(ctx.op.getText());
+        code.writeByte(typed(relation, integerRelation(relation), RuntimeType.iInteger,
+                             ctx.left, ctx.right));
+        return 0;
+    }
+
+    @Override
+    public Integer visitStringRelExp(StmntParser.StringRelExpContext ctx) {
+        if(pushConstant(ctx)) {
+            return 0;
+        }
+
         visit(ctx.left);
         visit(ctx.right);
         String op = ctx.op.getText();
@@ -498,31 +1430,396 @@ public class Compile extends StmntBaseVisitor<Integer> {
         return 0;
     }
 
-    @Override
-    public Integer visitStringRelExp(StmntParser.StringRelExpContext ctx) {
-        visit(ctx.left);
-        visit(ctx.right);
-        String op = ctx.op.getText();
+    /**
+     * Evaluate a condition and jump to falseLabel when it doesn't hold.
+     */
+    private void emitTest(StmntParser.LogicExpContext test, int falseLabel) {
+        if(options.getShortCircuit()) {
+            jumpWhen(test, false, falseLabel);
+        }
+        else {
+            emitPlainTest(test, falseLabel);
+        }
+    }
+
+    /**
+     * <p>Jump to label when test comes out as sense, evaluating and and or from left
+     * to right only as far as needed to know.</p>
+     *
+     * <p>A value that isn't boolean fails as the test of a JmpF or JmpT would, so
+     * 'not' is folded into the jumps too.</p>
+     */
+    private void jumpWhen(StmntParser.LogicExpContext test, Boolean sense, int label) {
+        ConstantFolder.Constant known = constantOf(test);
+        if(known != null) {
+            if((known.value == 1) == sense) {
+                jump(ByteCodes.Jmp, label);
+            }
+        }
+        else if(test instanceof StmntParser.LogicGroupContext) {
+            jumpWhen(((StmntParser.LogicGroupContext)test).logicExp(), sense, label);
+        }
+        else if(test instanceof StmntParser.LogicNotContext) {
+            jumpWhen(((StmntParser.LogicNotContext)test).logicExp(), !sense, label);
+        }
+        else if(test instanceof StmntParser.LogicAndContext) {
+            StmntParser.LogicAndContext and = (StmntParser.LogicAndContext)test;
+            if(!sense) {
+                jumpWhen(and.left, false, label);
+                jumpWhen(and.right, false, label);
+            }
+            else {
+                int isFalse = labelMaker.make();
+                jumpWhen(and.left, false, isFalse);
+                jumpWhen(and.right, true, label);
+                backPatches.setAddress(isFalse, code.getFinger());
+            }
+        }
+        else if(test instanceof StmntParser.LogicOrContext) {
+            StmntParser.LogicOrContext or = (StmntParser.LogicOrContext)test;
+            if(sense) {
+                jumpWhen(or.left, true, label);
+                jumpWhen(or.right, true, label);
+            }
+            else {
+                int isTrue = labelMaker.make();
+                jumpWhen(or.left, true, isTrue);
+                jumpWhen(or.right, false, label);
+                backPatches.setAddress(isTrue, code.getFinger());
+            }
+        }
+        else if(!sense) {
+            emitPlainTest(test, label);
+        }
+        else {
+            visit(test);
+            jump(ByteCodes.JmpT, label);
+        }
+    }
+
+    /**
+     * The value of an and or or, computed with jumps.
+     */
+    private Integer shortCircuit(StmntParser.LogicExpContext ctx) {
+        int isFalse = labelMaker.make();
+        int done = labelMaker.make();
+
+        jumpWhen(ctx, false, isFalse);
+        code.writeByte(ByteCodes.Push).writeByte(RuntimeType.iBoolean).writeInteger(1);
+        jump(ByteCodes.Jmp, done);
+        backPatches.setAddress(isFalse, code.getFinger());
+        code.writeByte(ByteCodes.Push).writeByte(RuntimeType.iBoolean).writeInteger(0);
+        backPatches.setAddress(done, code.getFinger());
+        return 0;
+    }
+
+    private void jump(ByteCodes op, int label) {
+        code.writeByte(op);
+        backPatches.addBackPatch(label, code.getFinger());
+        code.writeInteger(0);
+    }
+
+    /**
+     * Evaluate a condition and jump to falseLabel when it doesn't hold.  A variable
+     * compared with a number becomes one CmpJmpF.
+     */
+    private void emitPlainTest(StmntParser.LogicExpContext test, int falseLabel) {
+        ConstantFolder.Constant known = constantOf(test);
+        if(known != null) {
+            // A test that always holds needs no code, and one that never does is a jump.
+            if(known.value == 0) {
+                code.writeByte(ByteCodes.Jmp);
+                backPatches.addBackPatch(falseLabel, code.getFinger());
+                code.writeInteger(0);
+            }
+            return;
+        }
+
+        if(options.getSuperinstructions() &&
+           test instanceof StmntParser.LogicIntRelContext) {
+            StmntParser.IntRelExpContext rel =
+                ((StmntParser.LogicIntRelContext)test).intRelExp();
+            if(rel.left instanceof StmntParser.IdContext &&
+               rel.right instanceof StmntParser.NumberContext) {
+                String name = ((StmntParser.IdContext)rel.left).ID().getText();
+                String number = ((StmntParser.NumberContext)rel.right).NUMBER().getText();
+                LookupPair location = locate(rel.left, name);
+
+                code.writeByte(ByteCodes.CmpJmpF).writeByte(relation(rel.op.getText()))
+                    .writeInteger(location.frames).writeInteger(location.offset * 2)
+                    .writeByte(RuntimeType.iInteger)
+                    .writeInteger(Integer.valueOf(number.replace("_", "")));
+                backPatches.addBackPatch(falseLabel, code.getFinger());
+                code.writeInteger(0);
+                usedSuperinstructions = true;
+                return;
+            }
+        }
+
+        visit(test);
+        code.writeByte(ByteCodes.JmpF);
+        backPatches.addBackPatch(falseLabel, code.getFinger());
+        code.writeInteger(0);
+    }
+
+    /**
+     * If expression is just the sum of two variables, return the Add node.
+     */
+    private StmntParser.AddContext variableSum(StmntParser.ExpressionContext expression) {
+        if(!options.getSuperinstructions() ||
+           !(expression instanceof StmntParser.ArithEContext)) {
+            return null;
+        }
+        StmntParser.ArithExpContext arith = ((StmntParser.ArithEContext)expression).arithExp();
+        if(!(arith instanceof StmntParser.AddContext)) {
+            return null;
+        }
+        StmntParser.AddContext sum = (StmntParser.AddContext)arith;
+        if(constantOf(sum) != null || hoisted.containsKey(sum)) {
+            return null;
+        }
+        if(sum.op.getText().equals("+") &&
+           sum.left instanceof StmntParser.IdContext &&
+           sum.right instanceof StmntParser.IdContext) {
+            return sum;
+        }
+        return null;
+    }
+
+    /**
+     * Find a variable's frame and slot.  Blocks without frames keep their variables
+     * after those of the blocks around them, starting at the block's base.  The
+     * scope holding the variable comes from the MutableListener's definitions when
+     * occurrence has one there.
+     */
+    private LookupPair locate(ParseTree occurrence, String name) {
+        Scope defining = null;
+        if(occurrence != null && definitions != null) {
+            defining = definitions.get(occurrence);
+        }
+        if(defining == null) {
+            defining = currentScope.find(name);
+            if(defining == null) {
+                throw new RuntimeError("Cannot find " + name + " in scopes");
+            }
+        }
+
+        LookupPair location = currentScope.get(name, defining, frameless);
+        if(inlineEnd != null) {
+            // An inlined body's scopes don't count the argument frames around it.
+            location.frames += argumentDepth;
+        }
+        Integer base = bases.get(defining);
+        if(base != null) {
+            location.offset += base;
+        }
+        return location;
+    }
+
+    /**
+     * The most slots the blocks inside statements need at once.
+     */
+    private Integer nestedSlots(List<? extends ParseTree> statements) {
+        Integer answer = 0;
+        for(ParseTree statement : statements) {
+            answer = Math.max(answer, nestedSlots(statement));
+        }
+        return answer;
+    }
+
+    private Integer nestedSlots(ParseTree tree) {
+        if(tree instanceof StmntParser.BlockContext) {
+            StmntParser.BlockContext block = (StmntParser.BlockContext)tree;
+            return scopes.get(block).getNames().size() + nestedSlots(block.statement());
+        }
+        if(tree instanceof StmntParser.WhileStmntContext) {
+            // The invariants' slots are in use all through the loop.
+            Integer inside = 0;
+            for(int i = 0; i < tree.getChildCount(); i++) {
+                inside = Math.max(inside, nestedSlots(tree.getChild(i)));
+            }
+            return invariants((StmntParser.WhileStmntContext)tree).size() + inside;
+        }
+        Integer answer = 0;
+        if(tree instanceof StmntParser.FuncCallContext) {
+            // An inlined body's variables go above its parameters.
+            StmntParser.FuncDeclContext fun = declarationOf((StmntParser.FuncCallContext)tree);
+            if(inlinable(fun)) {
+                answer = scopes.get(fun).getNames().size() + nestedSlots(fun.block());
+            }
+        }
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            answer = Math.max(answer, nestedSlots(tree.getChild(i)));
+        }
+        return answer;
+    }
+
+    /**
+     * Whether block certainly assigns name before anything reads it: one of its own
+     * statements assigns it without using it, and no statement before that mentions it.
+     */
+    private Boolean assignedFirst(StmntParser.BlockContext block, String name) {
+        for(StmntParser.StatementContext statement : block.statement()) {
+            if(statement instanceof StmntParser.AssignContext) {
+                StmntParser.AssignContext assign = (StmntParser.AssignContext)statement;
+                if(assign.ID().getText().equals(name) &&
+                   !mentions(assign.expression(), name)) {
+                    return true;
+                }
+            }
+            if(mentions(statement, name)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private Boolean mentions(ParseTree tree, String name) {
+        if(tree instanceof StmntParser.IdContext) {
+            return ((StmntParser.IdContext)tree).ID().getText().equals(name);
+        }
+        if(tree instanceof StmntParser.LogicIdContext) {
+            return ((StmntParser.LogicIdContext)tree).ID().getText().equals(name);
+        }
+        if(tree instanceof StmntParser.AssignContext &&
+           ((StmntParser.AssignContext)tree).ID().getText().equals(name)) {
+            return true;
+        }
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            if(mentions(tree.getChild(i), name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The value the constant folder found for ctx, or null.
+     */
+    private ConstantFolder.Constant constantOf(ParseTree ctx) {
+        if(constants == null) {
+            return null;
+        }
+        return constants.constantOf(ctx);
+    }
+
+    /**
+     * Push ctx's value if the constant folder found it, instead of computing it.
+     */
+    private Boolean pushConstant(ParseTree ctx) {
+        ConstantFolder.Constant known = constantOf(ctx);
+        if(known == null) {
+            return false;
+        }
+        code.writeByte(ByteCodes.Push).writeByte(known.type).writeInteger(known.value);
+        return true;
+    }
+
+    private ByteCodes relation(String op) {
         switch(op) {
         case "<":
-            code.writeByte(ByteCodes.Lt);
-            break;
+            return ByteCodes.Lt;
         case "<=":
-            code.writeByte(ByteCodes.Lte);
-            break;
+            return ByteCodes.Lte;
         case "?=":
-            code.writeByte(ByteCodes.Eq);
-            break;
+            return ByteCodes.Eq;
         case "!=":
-            code.writeByte(ByteCodes.Neq);
-            break;
+            return ByteCodes.Neq;
         case ">=":
-            code.writeByte(ByteCodes.Gte);
-            break;
-        case ">":
-            code.writeByte(ByteCodes.Gt);
+            return ByteCodes.Gte;
+        default:
+            return ByteCodes.Gt;
         }
-        return 0;
+    }
+
+    /**
+     * The typed form of an integer relation.
+     */
+    private ByteCodes integerRelation(ByteCodes relation) {
+        switch(relation) {
+        case Lt:
+            return ByteCodes.ILt;
+        case Lte:
+            return ByteCodes.ILte;
+        case Eq:
+            return ByteCodes.IEq;
+        case Neq:
+            return ByteCodes.INeq;
+        case Gte:
+            return ByteCodes.IGte;
+        default:
+            return ByteCodes.IGt;
+        }
+    }
+
+    /**
+     * The typed form of an operation if type inference showed that all its operands
+     * have the type it takes, else the checked form.
+     */
+    private ByteCodes typed(ByteCodes checked, ByteCodes typed, RuntimeType operandType,
+                            ParseTree... operands) {
+        if(types == null) {
+            return checked;
+        }
+        for(ParseTree operand : operands) {
+            ConstantFolder.Constant known = constantOf(operand);
+            RuntimeType type = known != null ? known.type : types.typeOf(operand);
+            if(type != operandType) {
+                return checked;
+            }
+        }
+        usedTypedForms = true;
+        return typed;
+    }
+
+    /**
+     * Use the values found by a constant folder that has already run over the tree.
+     */
+    public void setConstants(ConstantFolder constants) {
+        this.constants = constants;
+    }
+
+    /**
+     * Whether tree can run, as far as the reachability analysis knows.
+     */
+    private Boolean reaches(ParseTree tree) {
+        return reachability == null || reachability.reaches(tree);
+    }
+
+    /**
+     * Leave out the code a reachability analysis of the tree found can't run.
+     */
+    public void setReachability(Reachability reachability) {
+        this.reachability = reachability;
+    }
+
+    /**
+     * Use the scopes the MutableListener found each variable in.
+     */
+    public void setDefinitions(ParseTreeProperty<Scope> definitions) {
+        this.definitions = definitions;
+    }
+
+    /**
+     * Use the types found by type inference that has already run over the tree.
+     */
+    public void setTypes(TypeInference types) {
+        this.types = types;
+    }
+
+    /**
+     * The peephole optimizer, to ask what it did, or null if it isn't in use.
+     */
+    public Peephole getPeephole() {
+        return peephole;
+    }
+
+    /**
+     * The cache of compiled functions, to ask what it reused, or null if it isn't in
+     * use.
+     */
+    public SegmentCache getCache() {
+        return cache;
     }
 
     public void writeCodeTo(String fileName) {
@@ -531,12 +1828,33 @@ public class Compile extends StmntBaseVisitor<Integer> {
 
     private CodeBuffer code;
     private ParseTreeProperty<Scope> scopes;
-    private HashMap<String, Integer> where;
     private BackPatch backPatches;
-    private HashMap<String, String> stringPool;
+    private BackPatch calls;
+    private LinkedHashMap<String, Integer> stringPool;
     private Labeller labelMaker;
     private Scope currentScope;
     private Map<String, FuncMeta> functionNameSpace;
-    private String currentFunctionReturnLabel;
+    private Map<String, StmntParser.FuncDeclContext> declarations;
+    private Integer visible;
+    private Map<StmntParser.FuncDeclContext, Boolean> inlinable;
+    private Map<FuncMeta, Boolean> closed;
+    private Integer inlineEnd;
+    private Integer argumentDepth = 0;
+    private Map<ParseTree, Integer> hoisted;
+    private Integer currentFunctionReturnLabel;
     private Integer blockDepth = 0;
+    private Map<Scope, Integer> bases;
+    private Set<Scope> frameless;
+    private Integer variableTop = 0;
+    private Options options;
+    private Boolean usedSuperinstructions = false;
+    private Boolean usedTypedForms = false;
+    private Boolean usedTailCalls = false;
+    private ConstantFolder constants;
+    private TypeInference types;
+    private ParseTreeProperty<Scope> definitions;
+    private Reachability reachability;
+    private Peephole peephole;
+    private SegmentCache cache;
+    private Map<StmntParser.FuncDeclContext, String> fingerprints;
 }
@@ -0,0 +1,459 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import org.antlr.v4.runtime.tree.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import common.RuntimeType;
+import common.Scope;
+
+import parser.*;
+
+/**
+ * <p>Work out which expressions have values known at compile time, so the compilers
+ * can emit the value instead of the code computing it.  Main runs this between
+ * collecting the mutables and compiling.</p>
+ *
+ * <p>Literals are constant, and so is an operator applied to constants, computed the
+ * way the abstract machine would: int arithmetic that wraps around, and
+ * (int)Math.pow.  Anything the machine would fail on, such as a type mismatch or a
+ * division by zero, is left for the machine.</p>
+ *
+ * <p>A variable is constant where it is read if it is assigned exactly once in the
+ * whole program, that assignment stores a constant, and it dominates the read: it
+ * comes earlier in the same function, in the same block as the read or in a block
+ * around it.</p>
+ */
+public class ConstantFolder extends StmntBaseVisitor<ConstantFolder.Constant> {
+
+    /**
+     * A value known at compile time.
+     */
+    public static class Constant {
+        public Constant(RuntimeType type, int value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        public final RuntimeType type;
+        public final int value;
+    }
+
+    public ConstantFolder(ParseTreeProperty<Scope> scopes) {
+        this.scopes = scopes;
+        constants = new ParseTreeProperty<Constant>();
+        assignments = new HashMap<Scope, Map<String, Integer>>();
+        knownScopes = new Vector<Scope>();
+        knownNames = new Vector<String>();
+        knownValues = new Vector<Constant>();
+    }
+
+    /**
+     * Fold the program in tree.
+     */
+    public void fold(ParseTree tree) {
+        new ParseTreeWalker().walk(new AssignmentCounter(), tree);
+        visit(tree);
+    }
+
+    /**
+     * The value of the expression ctx, or null if it isn't known.
+     */
+    public Constant constantOf(ParseTree ctx) {
+        return constants.get(ctx);
+    }
+
+    @Override
+    public Constant visitProg(StmntParser.ProgContext ctx) {
+        currentScope = scopes.get(ctx);
+        visitChildren(ctx);
+        return null;
+    }
+
+    @Override
+    public Constant visitFuncDecl(StmntParser.FuncDeclContext ctx) {
+        // Nothing known outside a function is known inside it.
+        int savedFloor = floor;
+        floor = knownScopes.size();
+        currentScope = scopes.get(ctx);
+        visit(ctx.block());
+        currentScope = currentScope.getParent();
+        forget(floor);
+        floor = savedFloor;
+        return null;
+    }
+
+    @Override
+    public Constant visitBlock(StmntParser.BlockContext ctx) {
+        // What is learned in a block is known only until the end of the block.
+        int known = knownScopes.size();
+        currentScope = scopes.get(ctx);
+        visitChildren(ctx);
+        currentScope = currentScope.getParent();
+        forget(known);
+        return null;
+    }
+
+    @Override
+    public Constant visitAssign(StmntParser.AssignContext ctx) {
+        Constant value = visit(ctx.expression());
+        String name = ctx.ID().getText();
+        Scope scope = definingScope(name);
+        if(value != null && scope != null && assignmentsTo(scope, name) == 1) {
+            knownScopes.add(scope);
+            knownNames.add(name);
+            knownValues.add(value);
+        }
+        return null;
+    }
+
+    // The rules below just wrap one expression.
+
+    @Override
+    public Constant visitArithE(StmntParser.ArithEContext ctx) {
+        return record(ctx, visit(ctx.arithExp()));
+    }
+
+    @Override
+    public Constant visitStringE(StmntParser.StringEContext ctx) {
+        visit(ctx.stringExp());
+        return null;
+    }
+
+    @Override
+    public Constant visitLogicE(StmntParser.LogicEContext ctx) {
+        return record(ctx, visit(ctx.logicExp()));
+    }
+
+    @Override
+    public Constant visitArithGroup(StmntParser.ArithGroupContext ctx) {
+        return record(ctx, visit(ctx.arithExp()));
+    }
+
+    @Override
+    public Constant visitLogicGroup(StmntParser.LogicGroupContext ctx) {
+        return record(ctx, visit(ctx.logicExp()));
+    }
+
+    @Override
+    public Constant visitLogicIntRel(StmntParser.LogicIntRelContext ctx) {
+        return record(ctx, visit(ctx.intRelExp()));
+    }
+
+    @Override
+    public Constant visitLogicStringRel(StmntParser.LogicStringRelContext ctx) {
+        return record(ctx, visit(ctx.stringRelExp()));
+    }
+
+    @Override
+    public Constant visitLogicLit(StmntParser.LogicLitContext ctx) {
+        return record(ctx, visit(ctx.boolLit()));
+    }
+
+    @Override
+    public Constant visitFuncCall(StmntParser.FuncCallContext ctx) {
+        visitChildren(ctx);
+        return null;
+    }
+
+    @Override
+    public Constant visitPower(StmntParser.PowerContext ctx) {
+        Constant left = visit(ctx.left);
+        Constant right = visit(ctx.right);
+        if(!integers(left, right)) {
+            return null;
+        }
+        return record(ctx, new Constant(RuntimeType.iInteger,
+                                        (int)Math.pow(left.value, right.value)));
+    }
+
+    @Override
+    public Constant visitMult(StmntParser.MultContext ctx) {
+        Constant left = visit(ctx.left);
+        Constant right = visit(ctx.right);
+        if(!integers(left, right)) {
+            return null;
+        }
+        String op = ctx.op.getText();
+        if(op.equals("*")) {
+            return record(ctx, new Constant(RuntimeType.iInteger, left.value * right.value));
+        }
+        if(right.value == 0) {
+            return null;
+        }
+        if(op.equals("div")) {
+            return record(ctx, new Constant(RuntimeType.iInteger, left.value / right.value));
+        }
+        return record(ctx, new Constant(RuntimeType.iInteger, left.value % right.value));
+    }
+
+    @Override
+    public Constant visitAdd(StmntParser.AddContext ctx) {
+        Constant left = visit(ctx.left);
+        Constant right = visit(ctx.right);
+        if(!integers(left, right)) {
+            return null;
+        }
+        if(ctx.op.getText().equals("+")) {
+            return record(ctx, new Constant(RuntimeType.iInteger, left.value + right.value));
+        }
+        return record(ctx, new Constant(RuntimeType.iInteger, left.value - right.value));
+    }
+
+    @Override
+    public Constant visitNumber(StmntParser.NumberContext ctx) {
+        Integer value = Integer.valueOf(ctx.NUMBER().getText().replace("_", ""));
+        return record(ctx, new Constant(RuntimeType.iInteger, value));
+    }
+
+    @Override
+    public Constant visitId(StmntParser.IdContext ctx) {
+        return record(ctx, known(ctx.ID().getText()));
+    }
+
+    @Override
+    public Constant visitStringExp(StmntParser.StringExpContext ctx) {
+        return null;
+    }
+
+    @Override
+    public Constant visitLogicNot(StmntParser.LogicNotContext ctx) {
+        Constant value = visit(ctx.logicExp());
+        if(value == null || value.type != RuntimeType.iBoolean) {
+            return null;
+        }
+        return record(ctx, bool(value.value != 1));
+    }
+
+    @Override
+    public Constant visitLogicAnd(StmntParser.LogicAndContext ctx) {
+        Constant left = visit(ctx.left);
+        Constant right = visit(ctx.right);
+        if(!booleans(left, right)) {
+            return null;
+        }
+        return record(ctx, bool(left.value == 1 && right.value == 1));
+    }
+
+    @Override
+    public Constant visitLogicOr(StmntParser.LogicOrContext ctx) {
+        Constant left = visit(ctx.left);
+        Constant right = visit(ctx.right);
+        if(!booleans(left, right)) {
+            return null;
+        }
+        return record(ctx, bool(left.value == 1 || right.value == 1));
+    }
+
+    @Override
+    public Constant visitLogicId(StmntParser.LogicIdContext ctx) {
+        return record(ctx, known(ctx.ID().getText()));
+    }
+
+    @Override
+    public Constant visitLitTrue(StmntParser.LitTrueContext ctx) {
+        return record(ctx, bool(true));
+    }
+
+    @Override
+    public Constant visitLitFalse(StmntParser.LitFalseContext ctx) {
+        return record(ctx, bool(false));
+    }
+
+    @Override
+    public Constant visitIntRelExp(StmntParser.IntRelExpContext ctx) {
+        Constant left = visit(ctx.left);
+        Constant right = visit(ctx.right);
+        if(!integers(left, right)) {
+            return null;
+        }
+        return record(ctx, bool(holds(ctx.op.getText(),
+                                      Integer.compare(left.value, right.value))));
+    }
+
+    @Override
+    public Constant visitStringRelExp(StmntParser.StringRelExpContext ctx) {
+        String left = literal(ctx.left);
+        String right = literal(ctx.right);
+        // The machine compares the bytes of the pooled strings as chars, which is
+        // the same as comparing the literals only when they are ASCII.
+        if(!ascii(left) || !ascii(right)) {
+            return null;
+        }
+        return record(ctx, bool(holds(ctx.op.getText(), left.compareTo(right))));
+    }
+
+    //------------------------------------------------------------------------------
+
+    private Constant record(ParseTree ctx, Constant value) {
+        if(value != null) {
+            constants.put(ctx, value);
+        }
+        return value;
+    }
+
+    private Constant bool(Boolean value) {
+        return new Constant(RuntimeType.iBoolean, value ? 1 : 0);
+    }
+
+    private Boolean integers(Constant left, Constant right) {
+        return left != null && right != null &&
+            left.type == RuntimeType.iInteger && right.type == RuntimeType.iInteger;
+    }
+
+    private Boolean booleans(Constant left, Constant right) {
+        return left != null && right != null &&
+            left.type == RuntimeType.iBoolean && right.type == RuntimeType.iBoolean;
+    }
+
+    /**
+     * Whether the relation op holds between two values that compare as order.
+     */
+    private Boolean holds(String op, int order) {
+        switch(op) {
+        case "<":
+            return order < 0;
+        case "<=":
+            return order <= 0;
+        case "?=":
+            return order == 0;
+        case "!=":
+            return order != 0;
+        case ">=":
+            return order >= 0;
+        default:
+            return order > 0;
+        }
+    }
+
+    private String literal(StmntParser.StringExpContext ctx) {
+        String value = ctx.STRING().getText();
+        return value.substring(1, value.length() - 1);
+    }
+
+    private Boolean ascii(String text) {
+        for(int i = 0; i < text.length(); i++) {
+            if(text.charAt(i) > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The value of the variable name if an assignment dominating this point stored a
+     * constant in it.
+     */
+    private Constant known(String name) {
+        Scope scope = definingScope(name);
+        for(int i = knownScopes.size() - 1; i >= floor; i--) {
+            if(knownScopes.get(i) == scope && knownNames.get(i).equals(name)) {
+                return knownValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    private void forget(int count) {
+        knownScopes.setSize(count);
+        knownNames.setSize(count);
+        knownValues.setSize(count);
+    }
+
+    private Scope definingScope(String name) {
+        for(Scope scope = currentScope; scope != null; scope = scope.getParent()) {
+            if(scope.holds(name)) {
+                return scope;
+            }
+        }
+        return null;
+    }
+
+    private int assignmentsTo(Scope scope, String name) {
+        Map<String, Integer> counts = assignments.get(scope);
+        if(counts == null || !counts.containsKey(name)) {
+            return 0;
+        }
+        return counts.get(name);
+    }
+
+    /**
+     * Count the assignments to each variable in the program, with the scopes set up
+     * the way the compilers will see them.
+     */
+    private class AssignmentCounter extends StmntBaseListener {
+        @Override
+        public void enterProg(StmntParser.ProgContext ctx) {
+            currentScope = scopes.get(ctx);
+        }
+
+        @Override
+        public void enterFuncDecl(StmntParser.FuncDeclContext ctx) {
+            currentScope = scopes.get(ctx);
+            List<TerminalNode> names = ctx.ID();
+            for(int i = 1; i < names.size(); i++) {
+                currentScope.putShadow(names.get(i).getText());
+            }
+        }
+
+        @Override
+        public void exitFuncDecl(StmntParser.FuncDeclContext ctx) {
+            currentScope = currentScope.getParent();
+        }
+
+        @Override
+        public void enterBlock(StmntParser.BlockContext ctx) {
+            currentScope = scopes.get(ctx);
+        }
+
+        @Override
+        public void exitBlock(StmntParser.BlockContext ctx) {
+            currentScope = currentScope.getParent();
+        }
+
+        @Override
+        public void enterAssign(StmntParser.AssignContext ctx) {
+            String name = ctx.ID().getText();
+            Scope scope = definingScope(name);
+            if(scope == null) {
+                return;
+            }
+            Map<String, Integer> counts = assignments.get(scope);
+            if(counts == null) {
+                counts = new HashMap<String, Integer>();
+                assignments.put(scope, counts);
+            }
+            counts.put(name, assignmentsTo(scope, name) + 1);
+        }
+    }
+
+    private ParseTreeProperty<Scope> scopes;
+    private ParseTreeProperty<Constant> constants;
+    private Map<Scope, Map<String, Integer>> assignments;
+    private Scope currentScope;
+
+    // The variables known to hold constants here, innermost last.  Those below floor
+    // belong to code outside the current function.
+    private Vector<Scope> knownScopes;
+    private Vector<String> knownNames;
+    private Vector<Constant> knownValues;
+    private int floor = 0;
+}
@@ -27,7 +27,7 @@ import common.Labeller;
 public class FuncMeta {
     public FuncMeta(Labeller labeller, List<TerminalNode> names) {
         name = names.remove(0).getText();
-        label = labeller.make(name);
+        label = labeller.make();
         parameters = new Vector<String>();
 
         for(TerminalNode param : names) {
@@ -45,7 +45,7 @@ public class FuncMeta {
         return internalName;
     }
 
-    public String getLabel() {
+    public int getLabel() {
         return label;
     }
 
@@ -53,8 +53,20 @@ public class FuncMeta {
         return parameters;
     }
 
+    /**
+     * Where the function is among the program's declarations, counting from 0.
+     */
+    public Integer getPosition() {
+        return position;
+    }
+
+    public void setPosition(Integer position) {
+        this.position = position;
+    }
+
     private String name;
-    private String label;
+    private int label;
     private List<String> parameters;
     private String internalName;
+    private Integer position;
 }
@@ -27,9 +27,15 @@ import common.Scope;
 
 public class Main {
     public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        int fileArg = options.parse(args);
+        if(fileArg < 0) {
+            return;
+        }
+
         String inputFileName = null;
-        if(args.length > 0) {
-            inputFileName = args[0];
+        if(args.length > fileArg) {
+            inputFileName = args[fileArg];
         }
 
         int pos = inputFileName.lastIndexOf('.');
@@ -55,9 +61,47 @@ public class Main {
                 ParseTreeWalker walker = new ParseTreeWalker();
                 walker.walk(collectMutables, tree);
 
-                Compile compiler = new Compile(scopes);
-                compiler.visit(tree);
-                compiler.writeCodeTo(outputFileName);
+                ConstantFolder constants = null;
+                if(options.getFolding()) {
+                    constants = new ConstantFolder(scopes);
+                    constants.fold(tree);
+                }
+
+                Reachability reachability = null;
+                if(options.getDeadCode()) {
+                    reachability = new Reachability(constants);
+                    reachability.find((StmntParser.ProgContext)tree);
+                }
+
+                if(options.getRegisters()) {
+                    RegCompile compiler = new RegCompile(scopes, options);
+                    compiler.setConstants(constants);
+                    compiler.setReachability(reachability);
+                    compiler.visit(tree);
+                    compiler.writeCodeTo(outputFileName);
+                }
+                else {
+                    Compile compiler = new Compile(scopes, options);
+                    compiler.setConstants(constants);
+                    compiler.setReachability(reachability);
+                    compiler.setDefinitions(collectMutables.getDefinitions());
+                    if(options.getTypedForms()) {
+                        TypeInference types = new TypeInference(scopes);
+                        types.infer(tree);
+                        compiler.setTypes(types);
+                    }
+                    compiler.visit(tree);
+                    compiler.writeCodeTo(outputFileName);
+                    if(options.getReport() && compiler.getPeephole() != null) {
+                        compiler.getPeephole().report(System.err);
+                    }
+                    if(options.getReport() && compiler.getCache() != null) {
+                        compiler.getCache().report(System.err);
+                    }
+                }
+                if(options.getReport() && reachability != null) {
+                    reachability.report(System.err);
+                }
             }
             catch(RuntimeError err) {
                 System.err.println("The program doesn't mean what you think it means: " +
@@ -28,6 +28,18 @@ import common.Scope;
 public class MutableListener extends StmntBaseListener {
     public MutableListener(ParseTreeProperty<Scope> scopes) {
         this.scopes = scopes;
+        definitions = new ParseTreeProperty<Scope>();
+        occurrences = new Vector<ParseTree>();
+        occurrenceScopes = new Vector<Scope>();
+    }
+
+    /**
+     * The scope each variable reference and assignment finds its variable in, known
+     * once the walk is done.  References to variables that are never assigned have
+     * none.
+     */
+    public ParseTreeProperty<Scope> getDefinitions() {
+        return definitions;
     }
 
     @Override
@@ -36,13 +48,26 @@ public class MutableListener extends StmntBaseListener {
         scopes.put(ctx, currentScope);
     }
 
+    @Override
+    public void exitProg(StmntParser.ProgContext ctx) {
+        // A variable can be used ahead of the assignment that makes it, so the names
+        // are looked up once every scope is complete.
+        for(int i = 0; i < occurrences.size(); i++) {
+            ParseTree occurrence = occurrences.get(i);
+            Scope defining = occurrenceScopes.get(i).find(name(occurrence));
+            if(defining != null) {
+                definitions.put(occurrence, defining);
+            }
+        }
+    }
+
     @Override
     public void enterFuncDecl(StmntParser.FuncDeclContext ctx) {
         currentScope = new Scope(currentScope);
         scopes.put(ctx, currentScope);
         List<TerminalNode> names = ctx.ID();
         for(int i = 1; i < names.size(); i++) {
-            currentScope.put(names.get(i).getText());
+            currentScope.putShadow(names.get(i).getText());
         }
     }
 
@@ -77,10 +102,39 @@ public class MutableListener extends StmntBaseListener {
     public void enterAssign(StmntParser.AssignContext ctx) {
         String name = ctx.ID().getText();
         currentScope.put(name);
+        occurs(ctx);
+    }
+
+    @Override
+    public void enterId(StmntParser.IdContext ctx) {
+        occurs(ctx);
+    }
+
+    @Override
+    public void enterLogicId(StmntParser.LogicIdContext ctx) {
+        occurs(ctx);
+    }
+
+    private void occurs(ParseTree occurrence) {
+        occurrences.add(occurrence);
+        occurrenceScopes.add(currentScope);
+    }
+
+    private String name(ParseTree occurrence) {
+        if(occurrence instanceof StmntParser.IdContext) {
+            return ((StmntParser.IdContext)occurrence).ID().getText();
+        }
+        if(occurrence instanceof StmntParser.LogicIdContext) {
+            return ((StmntParser.LogicIdContext)occurrence).ID().getText();
+        }
+        return ((StmntParser.AssignContext)occurrence).ID().getText();
     }
 
     private ParseTreeProperty<Scope> scopes;
     private Scope currentScope;
+    private ParseTreeProperty<Scope> definitions;
+    private Vector<ParseTree> occurrences;
+    private Vector<Scope> occurrenceScopes;
     Boolean inFunction = false;
     Boolean seenReturn = false;
 }
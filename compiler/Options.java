@@ -0,0 +1,309 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import common.CommandLine;
+
+/**
+ * The switches that change what the compiler emits.  Main fills these in from the
+ * command line.
+ */
+public class Options {
+
+    public Options() {
+        superinstructions = true;
+        registers = false;
+        folding = true;
+        peephole = true;
+        compact = true;
+        shortCircuit = false;
+        tailCalls = true;
+        typedForms = true;
+        deadCode = true;
+        inlineLimit = 4;
+        hoisting = true;
+        jobs = Runtime.getRuntime().availableProcessors();
+        cache = null;
+        report = false;
+    }
+
+    /**
+     * Parse leading command line options.  Returns the index of the first argument
+     * that isn't an option, which should be the source file name, or -1 after
+     * printing what is wrong with the command line.
+     */
+    public int parse(String[] args) {
+        CommandLine line = new CommandLine(args, usage, "-inline", "-jobs", "-cache");
+        int arg = 0;
+        while(arg < args.length && args[arg].startsWith("-")) {
+            if(!line.hasValue(arg)) {
+                return -1;
+            }
+            switch(args[arg]) {
+            case "-nofuse":
+                superinstructions = false;
+                break;
+            case "-reg":
+                registers = true;
+                break;
+            case "-nofold":
+                folding = false;
+                break;
+            case "-nopeep":
+                peephole = false;
+                break;
+            case "-nocompact":
+                compact = false;
+                break;
+            case "-shortcircuit":
+                shortCircuit = true;
+                break;
+            case "-notail":
+                tailCalls = false;
+                break;
+            case "-notypes":
+                typedForms = false;
+                break;
+            case "-nodead":
+                deadCode = false;
+                break;
+            case "-inline":
+                arg++;
+                inlineLimit = line.count(arg, 0);
+                if(inlineLimit == null) {
+                    return -1;
+                }
+                break;
+            case "-nohoist":
+                hoisting = false;
+                break;
+            case "-jobs":
+                arg++;
+                jobs = line.count(arg, 1);
+                if(jobs == null) {
+                    return -1;
+                }
+                break;
+            case "-cache":
+                arg++;
+                cache = args[arg];
+                break;
+            case "-report":
+                report = true;
+                break;
+            default:
+                System.err.println("ignoring unknown option " + args[arg]);
+                break;
+            }
+            arg++;
+        }
+        if(arg >= args.length) {
+            line.usage();
+            return -1;
+        }
+        return arg;
+    }
+
+    /**
+     * Whether to emit the superinstructions (MoveSum, CmpJmpF, CallPrep) in place of
+     * the instruction sequences they stand for.
+     */
+    public Boolean getSuperinstructions() {
+        return superinstructions;
+    }
+
+    public void setSuperinstructions(Boolean superinstructions) {
+        this.superinstructions = superinstructions;
+    }
+
+    /**
+     * Whether to compile for the register machine (RegCompile) instead of the stack
+     * machine.
+     */
+    public Boolean getRegisters() {
+        return registers;
+    }
+
+    public void setRegisters(Boolean registers) {
+        this.registers = registers;
+    }
+
+    /**
+     * Whether to run ConstantFolder, so constant expressions are computed at compile
+     * time.
+     */
+    public Boolean getFolding() {
+        return folding;
+    }
+
+    public void setFolding(Boolean folding) {
+        this.folding = folding;
+    }
+
+    /**
+     * Whether to run Peephole over the stack machine code.
+     */
+    public Boolean getPeephole() {
+        return peephole;
+    }
+
+    public void setPeephole(Boolean peephole) {
+        this.peephole = peephole;
+    }
+
+    /**
+     * Whether to use the compact forms of the stack machine's instructions, which
+     * need minor version 3 of the object format.
+     */
+    public Boolean getCompact() {
+        return compact;
+    }
+
+    public void setCompact(Boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Whether and and or skip their right operand when the left one decides the
+     * answer.  The interpreter has the same option.
+     */
+    public Boolean getShortCircuit() {
+        return shortCircuit;
+    }
+
+    public void setShortCircuit(Boolean shortCircuit) {
+        this.shortCircuit = shortCircuit;
+    }
+
+    /**
+     * Whether return f(...) reuses the returning function's frame for the call.
+     */
+    public Boolean getTailCalls() {
+        return tailCalls;
+    }
+
+    public void setTailCalls(Boolean tailCalls) {
+        this.tailCalls = tailCalls;
+    }
+
+    /**
+     * Whether to infer types and use the byte codes that skip checking them.
+     */
+    public Boolean getTypedForms() {
+        return typedForms;
+    }
+
+    public void setTypedForms(Boolean typedForms) {
+        this.typedForms = typedForms;
+    }
+
+    /**
+     * Whether to leave out unused functions and code that can't run.
+     */
+    public Boolean getDeadCode() {
+        return deadCode;
+    }
+
+    public void setDeadCode(Boolean deadCode) {
+        this.deadCode = deadCode;
+    }
+
+    /**
+     * The most statements a function may have and still be inlined.  0 turns inlining
+     * off.
+     */
+    public Integer getInlineLimit() {
+        return inlineLimit;
+    }
+
+    public void setInlineLimit(Integer inlineLimit) {
+        this.inlineLimit = inlineLimit;
+    }
+
+    /**
+     * Whether to compute the invariant expressions of while loops once before them.
+     */
+    public Boolean getHoisting() {
+        return hoisting;
+    }
+
+    public void setHoisting(Boolean hoisting) {
+        this.hoisting = hoisting;
+    }
+
+    /**
+     * How many threads compile function bodies.  1 compiles them one after another
+     * on the main thread.
+     */
+    public Integer getJobs() {
+        return jobs;
+    }
+
+    public void setJobs(Integer jobs) {
+        this.jobs = jobs;
+    }
+
+    /**
+     * The directory to keep compiled functions in between compiles, or null to
+     * compile every function every time.
+     */
+    public String getCache() {
+        return cache;
+    }
+
+    public void setCache(String cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * The options that change the code compiled for a function's body.  Compiles
+     * whose signatures are the same compile a function the same way.
+     */
+    public String getCodeSignature() {
+        return String.format("fuse %s fold %s shortcircuit %s tail %s types %s dead %s " +
+                             "inline %d hoist %s", superinstructions, folding,
+                             shortCircuit, tailCalls, typedForms, deadCode, inlineLimit,
+                             hoisting);
+    }
+
+    /**
+     * Whether to print what the optimizations removed.
+     */
+    public Boolean getReport() {
+        return report;
+    }
+
+    public void setReport(Boolean report) {
+        this.report = report;
+    }
+
+    private static final String usage = "usage: compile [options] file.stmnt";
+
+    private Boolean superinstructions;
+    private Boolean registers;
+    private Boolean folding;
+    private Boolean peephole;
+    private Boolean compact;
+    private Boolean shortCircuit;
+    private Boolean tailCalls;
+    private Boolean typedForms;
+    private Boolean deadCode;
+    private Integer inlineLimit;
+    private Boolean hoisting;
+    private Integer jobs;
+    private String cache;
+    private Boolean report;
+}
@@ -0,0 +1,473 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import common.BackPatch;
+import common.ByteCodes;
+import common.CodeBuffer;
+import common.RuntimeType;
+
+/**
+ * <p>Clean up the stack machine code Compile emitted, looking at a few instructions
+ * at a time.  It runs once the main program's Halt is written, before the string
+ * pool goes in and before the labels are patched, so jumps are still known by
+ * label and moving code only means moving the labels with it.</p>
+ *
+ * <p>The rules are:</p>
+ * <ul>
+ *   <li>jump threading: a jump to a Jmp goes straight to where that Jmp goes</li>
+ *   <li>jump to next: a Jmp to the instruction after it is dropped</li>
+ *   <li>push and pop: a Push or Copy followed by a Pop is dropped</li>
+ * </ul>
+ *
+ * <p>When the code is laid out again it can also use the compact forms of Move,
+ * Copy, Push and the jumps (see ByteCodes), which need minor version 3.  Jumps start
+ * out short; any that can't reach their targets are made long again, until all
+ * fit.</p>
+ */
+public class Peephole {
+
+    public Peephole() {
+        applied = new LinkedHashMap<String, Integer>();
+        instructionsRemoved = new HashMap<String, Integer>();
+        bytesRemoved = new HashMap<String, Integer>();
+        for(String rule : new String[] { jumpThreading, jumpToNext, pushAndPop,
+                                         compactForms }) {
+            applied.put(rule, 0);
+            instructionsRemoved.put(rule, 0);
+            bytesRemoved.put(rule, 0);
+        }
+    }
+
+    public static final String jumpThreading = "jump threading";
+    public static final String jumpToNext = "jump to next";
+    public static final String pushAndPop = "push and pop";
+    public static final String compactForms = "compact forms";
+
+    /**
+     * Note that rule was applied once, removing the given number of instructions and
+     * bytes.
+     */
+    public void removed(String rule, int instructions, int bytes) {
+        applied.put(rule, applied.get(rule) + 1);
+        instructionsRemoved.put(rule, instructionsRemoved.get(rule) + instructions);
+        bytesRemoved.put(rule, bytesRemoved.get(rule) + bytes);
+    }
+
+    /**
+     * Print what each rule did.
+     */
+    public void report(PrintStream out) {
+        for(String rule : applied.keySet()) {
+            out.println(String.format("%-16s %6d applied %6d instructions %6d bytes removed",
+                                      rule, applied.get(rule),
+                                      instructionsRemoved.get(rule),
+                                      bytesRemoved.get(rule)));
+        }
+    }
+
+    /**
+     * Whether the last optimize() used any compact forms.
+     */
+    public Boolean getUsedCompactForms() {
+        return usedCompactForms;
+    }
+
+    /**
+     * <p>Optimize the code from start up to code's finger, which must be just past the
+     * Halt ending the main program.  The label addresses and the references in
+     * backPatches are moved along with the code, and the finger is left at the new end
+     * of the code.</p>
+     *
+     * <p>Options says whether the rules and the compact forms may be used.</p>
+     */
+    public void optimize(CodeBuffer code, int start, BackPatch backPatches,
+                         Options options) {
+        usedCompactForms = false;
+        decode(code, start, code.getFinger(), backPatches);
+
+        Boolean changed = options.getPeephole();
+        while(changed) {
+            changed = false;
+            for(int i = 0; i < count; i++) {
+                if(live[i]) {
+                    changed |= threadJump(i);
+                    changed |= dropJumpToNext(i);
+                    changed |= dropPushAndPop(i);
+                }
+            }
+        }
+
+        encode(code, start, options.getCompact());
+    }
+
+    //------------------------------------------------------------------------------
+
+    /**
+     * Split the code into instructions and note which are jumped to.
+     */
+    private void decode(CodeBuffer code, int start, int end, BackPatch backPatches) {
+        ByteCodes[] byteCodes = ByteCodes.values();
+        count = 0;
+        for(int at = start; at < end; at += 1 + byteCodes[code.getByte(at)].getOperandBytes()) {
+            count++;
+        }
+
+        addresses = new int[count + 1];
+        ops = new ByteCodes[count];
+        live = new boolean[count];
+        labelled = new boolean[count + 1];
+        branches = new int[count];
+        bytes = new byte[end - start];
+        waiting = new boolean[count];
+        indexes = new int[end - start + 1];
+        Arrays.fill(indexes, -1);
+        Arrays.fill(branches, -1);
+        codeStart = start;
+
+        for(int at = start; at < end; at++) {
+            bytes[at - start] = (byte)code.getByte(at);
+        }
+
+        int at = start;
+        for(int i = 0; i < count; i++) {
+            addresses[i] = at;
+            ops[i] = byteCodes[code.getByte(at)];
+            live[i] = true;
+            indexes[at - start] = i;
+            at += 1 + ops[i].getOperandBytes();
+        }
+        addresses[count] = end;
+        indexes[end - start] = count;
+        this.backPatches = backPatches;
+
+        for(int label = 0; label < backPatches.getLabelLimit(); label++) {
+            int index = indexAt(backPatches.getAddress(label));
+            if(index >= 0) {
+                labelled[index] = true;
+            }
+        }
+
+        // The jumps' targets are kept by instruction, so threading can change them;
+        // everything else waiting for an address just moves with its instruction.
+        positions = new int[backPatches.getCount()];
+        targets = new int[backPatches.getCount()];
+        references = 0;
+        for(int k = 0; k < backPatches.getCount(); k++) {
+            int position = backPatches.getPosition(k);
+            int next = indexAt(position + 4);
+            if(next > 0 && isJump(ops[next - 1])) {
+                branches[next - 1] = backPatches.getLabel(k);
+                continue;
+            }
+            positions[references] = position;
+            targets[references] = backPatches.getLabel(k);
+            references++;
+            if(position >= start && position < end) {
+                waiting[containing(position)] = true;
+            }
+        }
+    }
+
+    /**
+     * Lay the live instructions out again, moving the labels and references.
+     */
+    private void encode(CodeBuffer code, int start, Boolean compact) {
+        ByteCodes[] forms = new ByteCodes[count];
+        for(int i = 0; i < count; i++) {
+            forms[i] = compact && live[i] ? compactForm(i) : ops[i];
+        }
+
+        // A short jump that can't reach its target takes its long form, which can push
+        // other targets out of reach in turn.
+        int[] moved = layout(start, forms);
+        Boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(int i = 0; i < count; i++) {
+                if(live[i] && forms[i].getOperands().equals("j") &&
+                   !fitsShort(moved[landing(branches[i])] - moved[i])) {
+                    forms[i] = forms[i].getLongForm();
+                    changed = true;
+                }
+            }
+            if(changed) {
+                moved = layout(start, forms);
+            }
+        }
+
+        backPatches.clearBackPatches();
+        code.setFinger(start);
+        for(int i = 0; i < count; i++) {
+            if(!live[i]) {
+                continue;
+            }
+            if(forms[i] != ops[i]) {
+                usedCompactForms = true;
+                removed(compactForms, 0, ops[i].getOperandBytes() - forms[i].getOperandBytes());
+            }
+            code.writeByte(forms[i]);
+            switch(forms[i]) {
+            case MoveS:
+            case CopyS:
+                code.writeByte(intAt(addresses[i] + 1)).writeByte(intAt(addresses[i] + 5));
+                break;
+            case PushSmallInt:
+                code.writeShort(intAt(addresses[i] + 2) & 0xFFFF);
+                break;
+            case PushTrue:
+            case PushFalse:
+                break;
+            case JmpS:
+            case JmpTS:
+            case JmpFS:
+                code.writeShort((moved[landing(branches[i])] - moved[i]) & 0xFFFF);
+                continue;
+            default:
+                code.writeBytes(Arrays.copyOfRange(bytes, addresses[i] + 1 - start,
+                                                   addresses[i + 1] - start));
+                break;
+            }
+            if(branches[i] >= 0) {
+                backPatches.addBackPatch(branches[i], code.getFinger() - 4);
+            }
+        }
+        code.truncate(code.getFinger());
+
+        for(int k = 0; k < references; k++) {
+            int position = positions[k];
+            if(position < start || position >= addresses[count]) {
+                backPatches.addBackPatch(targets[k], position);
+                continue;
+            }
+            int i = containing(position);
+            if(live[i]) {
+                backPatches.addBackPatch(targets[k], moved[i] + position - addresses[i]);
+            }
+        }
+
+        for(int label = 0; label < backPatches.getLabelLimit(); label++) {
+            int index = indexAt(backPatches.getAddress(label));
+            if(index >= 0) {
+                backPatches.setAddress(label, moved[index]);
+            }
+        }
+    }
+
+    /**
+     * Where each instruction starts when laid out in forms, from start.  A dead
+     * instruction gets the address of the next live one.
+     */
+    private int[] layout(int start, ByteCodes[] forms) {
+        int[] moved = new int[count + 1];
+        int at = start;
+        for(int i = 0; i < count; i++) {
+            moved[i] = at;
+            if(live[i]) {
+                at += 1 + forms[i].getOperandBytes();
+            }
+        }
+        moved[count] = at;
+        return moved;
+    }
+
+    /**
+     * The shortest form instruction i could take.  Operands waiting for an address
+     * keep their long form.
+     */
+    private ByteCodes compactForm(int i) {
+        int at = addresses[i];
+        switch(ops[i]) {
+        case Move:
+        case Copy:
+            if(fitsByte(intAt(at + 1)) && fitsByte(intAt(at + 5))) {
+                return ops[i] == ByteCodes.Move ? ByteCodes.MoveS : ByteCodes.CopyS;
+            }
+            break;
+        case Push:
+            if(waiting[i]) {
+                break;
+            }
+            int value = intAt(at + 2);
+            if(bytes[at + 1 - codeStart] == RuntimeType.iBoolean.ordinal()) {
+                return value == 1 ? ByteCodes.PushTrue : ByteCodes.PushFalse;
+            }
+            if(bytes[at + 1 - codeStart] == RuntimeType.iInteger.ordinal() &&
+               fitsShort(value)) {
+                return ByteCodes.PushSmallInt;
+            }
+            break;
+        case Jmp:
+            return landing(branches[i]) < 0 ? ops[i] : ByteCodes.JmpS;
+        case JmpT:
+            return landing(branches[i]) < 0 ? ops[i] : ByteCodes.JmpTS;
+        case JmpF:
+            return landing(branches[i]) < 0 ? ops[i] : ByteCodes.JmpFS;
+        default:
+            break;
+        }
+        return ops[i];
+    }
+
+    private Boolean fitsByte(int value) {
+        return value >= 0 && value <= 255;
+    }
+
+    private Boolean fitsShort(int value) {
+        return value >= Short.MIN_VALUE && value <= Short.MAX_VALUE;
+    }
+
+    private int intAt(int address) {
+        return ByteBuffer.wrap(bytes).getInt(address - codeStart);
+    }
+
+    private Boolean threadJump(int i) {
+        if(branches[i] < 0) {
+            return false;
+        }
+        int target = landing(branches[i]);
+        if(target < 0 || target == count || target == i || ops[target] != ByteCodes.Jmp ||
+           branches[target] < 0 || branches[target] == branches[i] ||
+           landing(branches[target]) == target) {
+            return false;
+        }
+        branches[i] = branches[target];
+        removed(jumpThreading, 0, 0);
+        return true;
+    }
+
+    private Boolean dropJumpToNext(int i) {
+        if(ops[i] != ByteCodes.Jmp || branches[i] < 0 ||
+           landing(branches[i]) != nextLive(i)) {
+            return false;
+        }
+        live[i] = false;
+        removed(jumpToNext, 1, 5);
+        return true;
+    }
+
+    private Boolean dropPushAndPop(int i) {
+        if(ops[i] != ByteCodes.Push && ops[i] != ByteCodes.Copy) {
+            return false;
+        }
+        int next = nextLive(i);
+        if(next == count || ops[next] != ByteCodes.Pop || jumpedInto(i, next)) {
+            return false;
+        }
+        live[i] = false;
+        live[next] = false;
+        removed(pushAndPop, 2, 1 + ops[i].getOperandBytes() + 1);
+        return true;
+    }
+
+    //------------------------------------------------------------------------------
+
+    private Boolean isJump(ByteCodes op) {
+        return op == ByteCodes.Jmp || op == ByteCodes.JmpT || op == ByteCodes.JmpF ||
+            op == ByteCodes.CmpJmpF;
+    }
+
+    /**
+     * The live instruction a jump to label ends up at.
+     */
+    private int landing(int label) {
+        int index = indexAt(backPatches.getAddress(label));
+        if(index < 0) {
+            return -1;
+        }
+        while(index < count && !live[index]) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * The instruction starting at address, or -1 if none does.
+     */
+    private int indexAt(int address) {
+        if(address < codeStart || address - codeStart >= indexes.length) {
+            return -1;
+        }
+        return indexes[address - codeStart];
+    }
+
+    private int nextLive(int i) {
+        int next = i + 1;
+        while(next < count && !live[next]) {
+            next++;
+        }
+        return next;
+    }
+
+    /**
+     * Whether a label lands anywhere after instruction first, up to and including
+     * instruction last.
+     */
+    private Boolean jumpedInto(int first, int last) {
+        for(int i = first + 1; i <= last; i++) {
+            if(labelled[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The instruction holding the byte at position.
+     */
+    private int containing(int position) {
+        int low = 0;
+        int high = count - 1;
+        while(low < high) {
+            int middle = (low + high + 1) / 2;
+            if(addresses[middle] <= position) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private Map<String, Integer> applied;
+    private Map<String, Integer> instructionsRemoved;
+    private Map<String, Integer> bytesRemoved;
+    private Boolean usedCompactForms = false;
+
+    // The code being optimized, one entry per instruction
+    private int codeStart;
+    private int count;
+    private int[] addresses;
+    private ByteCodes[] ops;
+    private boolean[] live;
+    private boolean[] labelled;
+    private int[] branches;
+    private boolean[] waiting;
+    private byte[] bytes;
+    private int[] indexes;
+    private int[] positions;
+    private int[] targets;
+    private int references;
+    private BackPatch backPatches;
+}
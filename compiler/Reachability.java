@@ -0,0 +1,232 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import org.antlr.v4.runtime.tree.*;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+import common.RuntimeType;
+
+import parser.*;
+
+/**
+ * <p>Find the code that can never run, so the compilers can leave it out.  Main runs
+ * this after the constant folder, whose results it uses, and before compiling.</p>
+ *
+ * <p>A function is used if a call to it can run, starting from the top-level
+ * statements.  A statement can't run if it follows one that never finishes: a
+ * return, an if whose every branch never finishes, or a while whose test is always
+ * true.  A branch of an if can't run if its test is always false or an earlier
+ * test is always true, and a while whose test is always false never runs at all.
+ * Errors in code left out, such as calling a function with the wrong number of
+ * arguments, go unreported.</p>
+ */
+public class Reachability {
+
+    public Reachability(ConstantFolder constants) {
+        this.constants = constants;
+        declarations = new HashMap<String, StmntParser.FuncDeclContext>();
+        used = new HashSet<StmntParser.FuncDeclContext>();
+        dead = new HashSet<ParseTree>();
+        unused = new Vector<String>();
+    }
+
+    /**
+     * Find what is reachable in the program prog.
+     */
+    public void find(StmntParser.ProgContext prog) {
+        for(StmntParser.FuncDeclContext fun : prog.funcDecl()) {
+            String name = internalName(fun);
+            if(!declarations.containsKey(name)) {
+                declarations.put(name, fun);
+            }
+        }
+
+        statements(prog.statement());
+        while(!pending.isEmpty()) {
+            StmntParser.FuncDeclContext fun = pending.remove(pending.size() - 1);
+            statements(fun.block().statement());
+        }
+
+        for(StmntParser.FuncDeclContext fun : prog.funcDecl()) {
+            if(!used.contains(fun)) {
+                unused.add(fun.ID(0).getText() + "/" + (fun.ID().size() - 1));
+            }
+        }
+    }
+
+    /**
+     * Whether a call to fun can run.
+     */
+    public Boolean isUsed(StmntParser.FuncDeclContext fun) {
+        return used.contains(fun);
+    }
+
+    /**
+     * Whether the statement, or the body of an if's branch or a while, can run.
+     */
+    public Boolean reaches(ParseTree code) {
+        return !dead.contains(code);
+    }
+
+    /**
+     * Whether test is known to hold every time.
+     */
+    public Boolean always(StmntParser.LogicExpContext test) {
+        return known(test, 1);
+    }
+
+    /**
+     * Whether test is known to fail every time.
+     */
+    public Boolean never(StmntParser.LogicExpContext test) {
+        return known(test, 0);
+    }
+
+    /**
+     * Print what was found unreachable.
+     */
+    public void report(PrintStream out) {
+        out.println(String.format("%-16s %6d removed %s", "unused functions",
+                                  unused.size(), String.join(" ", unused)));
+        out.println(String.format("%-16s %6d removed", "dead statements",
+                                  deadStatements));
+        out.println(String.format("%-16s %6d removed", "dead branches",
+                                  deadBranches));
+    }
+
+    //------------------------------------------------------------------------------
+
+    /**
+     * Go through a list of statements run one after another.  Returns whether the
+     * last of them can finish.
+     */
+    private Boolean statements(List<StmntParser.StatementContext> list) {
+        Boolean reachable = true;
+        for(StmntParser.StatementContext statement : list) {
+            if(!reachable) {
+                dead.add(statement);
+                deadStatements++;
+            }
+            else {
+                reachable = statement(statement);
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Go through a statement that can run.  Returns whether it can finish.
+     */
+    private Boolean statement(StmntParser.StatementContext statement) {
+        if(statement instanceof StmntParser.ReturnStmntContext) {
+            calls(statement);
+            return false;
+        }
+
+        if(statement instanceof StmntParser.IfStmntContext) {
+            StmntParser.IfStmntContext ifStmnt = (StmntParser.IfStmntContext)statement;
+            Boolean taken = false;
+            Boolean finishes = false;
+            for(StmntParser.IfBlockContext branch : ifStmnt.ifBlock()) {
+                if(taken || never(branch.test)) {
+                    dead.add(branch.body);
+                    deadBranches++;
+                    continue;
+                }
+                calls(branch.test);
+                finishes |= statements(branch.body.statement());
+                taken = always(branch.test);
+            }
+            if(ifStmnt.block() != null) {
+                if(taken) {
+                    dead.add(ifStmnt.block());
+                    deadBranches++;
+                }
+                else {
+                    finishes |= statements(ifStmnt.block().statement());
+                }
+            }
+            else if(!taken) {
+                // No branch taken
+                finishes = true;
+            }
+            return finishes;
+        }
+
+        if(statement instanceof StmntParser.WhileStmntContext) {
+            StmntParser.WhileStmntContext loop = (StmntParser.WhileStmntContext)statement;
+            if(never(loop.test)) {
+                dead.add(statement);
+                deadBranches++;
+                return true;
+            }
+            calls(loop.test);
+            statements(loop.body.statement());
+            return !always(loop.test);
+        }
+
+        calls(statement);
+        return true;
+    }
+
+    /**
+     * Note the functions called in tree as used.
+     */
+    private void calls(ParseTree tree) {
+        if(tree instanceof StmntParser.FuncCallContext) {
+            StmntParser.FuncCallContext call = (StmntParser.FuncCallContext)tree;
+            String name = String.format("%s\\%d", call.ID().getText(),
+                                        call.expression().size());
+            StmntParser.FuncDeclContext fun = declarations.get(name);
+            if(fun != null && used.add(fun)) {
+                pending.add(fun);
+            }
+        }
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            calls(tree.getChild(i));
+        }
+    }
+
+    private Boolean known(StmntParser.LogicExpContext test, int value) {
+        if(constants == null) {
+            return false;
+        }
+        ConstantFolder.Constant constant = constants.constantOf(test);
+        return constant != null && constant.type == RuntimeType.iBoolean &&
+            constant.value == value;
+    }
+
+    private String internalName(StmntParser.FuncDeclContext fun) {
+        return String.format("%s\\%d", fun.ID(0).getText(), fun.ID().size() - 1);
+    }
+
+    private ConstantFolder constants;
+    private Map<String, StmntParser.FuncDeclContext> declarations;
+    private Set<StmntParser.FuncDeclContext> used;
+    private Vector<StmntParser.FuncDeclContext> pending = new Vector<StmntParser.FuncDeclContext>();
+    private Set<ParseTree> dead;
+    private List<String> unused;
+    private int deadStatements = 0;
+    private int deadBranches = 0;
+}
@@ -0,0 +1,793 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import common.BackPatch;
+import common.CodeBuffer;
+import common.Labeller;
+import common.LookupPair;
+import common.RegCodes;
+import common.RuntimeError;
+import common.RuntimeType;
+import common.Scope;
+
+import parser.*;
+
+/**
+ * <p>Compile to register code (see RegCodes) instead of stack code.  Main picks this
+ * compiler when given -reg.</p>
+ *
+ * <p>Each visit of an expression returns the register holding its value.  A
+ * variable's value is used straight from its register; everything else goes into a
+ * temporary, or into the register the parent asked for with into().  Temporaries are
+ * handed out above the variables and are all free again at the start of each
+ * statement.</p>
+ */
+public class RegCompile extends StmntBaseVisitor<Integer> {
+    private static final int maxRegister = 0xffff;
+
+    public RegCompile(ParseTreeProperty<Scope> scopes) {
+        this(scopes, new Options());
+    }
+
+    public RegCompile(ParseTreeProperty<Scope> scopes, Options options) {
+        this.options = options;
+        code = new CodeBuffer();
+        backPatches = new BackPatch();
+        this.scopes = scopes;
+        stringPool = new LinkedHashMap<String, Integer>();
+        labelMaker = new Labeller();
+        functionNameSpace = new HashMap<String, FuncMeta>();
+        bases = new HashMap<Scope, Integer>();
+    }
+
+    @Override
+    public Integer visitProg(StmntParser.ProgContext ctx) {
+        globalScope = scopes.get(ctx);
+        currentScope = globalScope;
+        bases.put(globalScope, 0);
+
+        // signature
+        code.writeByte('s').writeByte('t').writeByte('m').writeByte('n').writeByte('t');
+
+        // major version 1 is register code
+        code.writeByte(1).writeByte(0);
+
+        int startHere = labelMaker.make();
+        backPatches.addBackPatch(startHere, code.getFinger());
+        code.writeInteger(0);
+
+        // Functions may be called before the compiler reaches their declarations.
+        for(StmntParser.FuncDeclContext fctx : ctx.funcDecl()) {
+            FuncMeta fun = new FuncMeta(labelMaker, fctx.ID());
+            if(functionNameSpace.containsKey(fun.getInternalName())) {
+                throw new RuntimeError("attempt to redefine function " + fun.getName() +
+                                       " near " + fctx.getStart().getLine() + ":" +
+                                       fctx.getStart().getCharPositionInLine());
+            }
+            functionNameSpace.put(fun.getInternalName(), fun);
+            functions.put(fctx, fun);
+        }
+
+        for(StmntParser.FuncDeclContext fctx : ctx.funcDecl()) {
+            if(reachability == null || reachability.isUsed(fctx)) {
+                visit(fctx);
+            }
+        }
+
+        backPatches.setAddress(startHere, code.getFinger());
+
+        Integer frameSizeAt = beginFrame(0, globalScope.getNames().size());
+        for(StmntParser.StatementContext sctx : ctx.statement()) {
+            if(reachability == null || reachability.reaches(sctx)) {
+                statement(sctx);
+            }
+        }
+        code.writeByte(RegCodes.Halt.ordinal());
+        code.putInteger(highWater, frameSizeAt);
+
+        // Dump the string pool past the end of the executable code, in the order the
+        // strings were first used
+        for(Map.Entry<String, Integer> string : stringPool.entrySet()) {
+            backPatches.setAddress(string.getValue(), code.getFinger());
+            code.writeString(string.getKey());
+            code.writeByte(0); // zero terminate strings in the image
+        }
+
+        backPatches.doBackPatches(code);
+
+        return 0;
+    }
+
+    @Override
+    public Integer visitFuncDecl(StmntParser.FuncDeclContext ctx) {
+        FuncMeta fun = functions.get(ctx);
+        backPatches.setAddress(fun.getLabel(), code.getFinger());
+
+        currentScope = scopes.get(ctx);
+        for(String name : fun.getParameters()) {
+            currentScope.putShadow(name);
+        }
+        parameterScope = currentScope;
+        parameters = fun.getParameters();
+
+        Integer frameSizeAt = beginFrame(parameters.size(), parameters.size());
+        functionBody = true;
+        visit(ctx.block());
+        code.writeByte(RegCodes.NoRtn.ordinal());
+        code.putInteger(highWater, frameSizeAt);
+
+        parameterScope = null;
+        parameters = null;
+        currentScope = currentScope.getParent();
+
+        return 0;
+    }
+
+    @Override
+    public Integer visitBlock(StmntParser.BlockContext ctx) {
+        currentScope = scopes.get(ctx);
+        Integer savedVariableTop = variableTop;
+
+        Vector<String> mutables = currentScope.getNames();
+        bases.put(currentScope, variableTop);
+        variableTop += mutables.size();
+        checkRegister(variableTop);
+
+        // Frame clears a function's window; other blocks start their variables at 0
+        // themselves, like Locals does on the stack machine.
+        if(!functionBody) {
+            for(int i = 0; i < mutables.size(); i++) {
+                loadImmediate(bases.get(currentScope) + i, RuntimeType.iInteger, 0);
+            }
+        }
+        functionBody = false;
+
+        for(StmntParser.StatementContext sctx : ctx.statement()) {
+            if(reachability == null || reachability.reaches(sctx)) {
+                statement(sctx);
+            }
+        }
+
+        variableTop = savedVariableTop;
+        currentScope = currentScope.getParent();
+        return 0;
+    }
+
+    @Override
+    public Integer visitPrintStmnt(StmntParser.PrintStmntContext ctx) {
+        for(StmntParser.ExpressionContext ectx : ctx.expression()) {
+            Integer value = visit(ectx);
+            code.writeByte(RegCodes.Print.ordinal()).writeShort(value);
+        }
+
+        code.writeByte(RegCodes.PrtLn.ordinal());
+
+        return 0;
+    }
+
+    @Override
+    public Integer visitAssign(StmntParser.AssignContext ctx) {
+        LookupPair location = resolve(ctx.ID().getText());
+
+        if(location.frames == 0) {
+            into(ctx.expression(), location.offset);
+        }
+        else {
+            Integer value = visit(ctx.expression());
+            code.writeByte(RegCodes.GStore.ordinal()).writeShort(location.offset)
+                .writeShort(value);
+        }
+
+        return 0;
+    }
+
+    @Override
+    public Integer visitIfStmnt(StmntParser.IfStmntContext ctx) {
+        // Branches that can't run are left out, and a test that always holds makes its
+        // branch the else.
+        List<StmntParser.IfBlockContext> conditions = new Vector<StmntParser.IfBlockContext>();
+        StmntParser.BlockContext elseBody = ctx.block();
+        for(StmntParser.IfBlockContext ifBlock : ctx.ifBlock()) {
+            if(reachability != null && !reachability.reaches(ifBlock.body)) {
+                continue;
+            }
+            if(reachability != null && reachability.always(ifBlock.test)) {
+                elseBody = ifBlock.body;
+                break;
+            }
+            conditions.add(ifBlock);
+        }
+        if(reachability != null && elseBody != null && !reachability.reaches(elseBody)) {
+            elseBody = null;
+        }
+        Boolean hasElse = elseBody != null;
+        int ifEnd = labelMaker.make();
+
+        for(int index = 0; index < conditions.size(); index++) {
+            StmntParser.IfBlockContext ifBlock = conditions.get(index);
+            Boolean last = index == conditions.size() - 1;
+            int jmpOnTestFalse = last && !hasElse ? ifEnd : labelMaker.make();
+
+            jumpIfFalse(ifBlock.test, jmpOnTestFalse);
+            visit(ifBlock.body);
+            if(!last || hasElse) {
+                jump(ifEnd);
+                backPatches.setAddress(jmpOnTestFalse, code.getFinger());
+            }
+        }
+
+        if(hasElse) {
+            visit(elseBody);
+        }
+
+        backPatches.setAddress(ifEnd, code.getFinger());
+
+        return 0;
+    }
+
+    @Override
+    public Integer visitWhileStmnt(StmntParser.WhileStmntContext ctx) {
+        int whileBegin = labelMaker.make();
+        int whileEnd = labelMaker.make();
+
+        backPatches.setAddress(whileBegin, code.getFinger());
+        jumpIfFalse(ctx.test, whileEnd);
+        visit(ctx.body);
+        jump(whileBegin);
+        backPatches.setAddress(whileEnd, code.getFinger());
+
+        return 0;
+    }
+
+    @Override
+    public Integer visitExpressionStmnt(StmntParser.ExpressionStmntContext ctx) {
+        visit(ctx.expression());
+        return 0;
+    }
+
+    @Override
+    public Integer visitReturnStmnt(StmntParser.ReturnStmntContext ctx) {
+        Integer value = visit(ctx.expression());
+        code.writeByte(RegCodes.Ret.ordinal()).writeShort(value);
+        return 0;
+    }
+
+    @Override
+    public Integer visitFuncCall(StmntParser.FuncCallContext ctx) {
+        String name = ctx.ID().getText();
+        List<StmntParser.ExpressionContext> args = ctx.expression();
+        String internalName = String.format("%s\\%d", name, args.size());
+
+        if(!functionNameSpace.containsKey(internalName)) {
+            throw new RuntimeError("cannot find function named " + name);
+        }
+
+        FuncMeta fun = functionNameSpace.get(internalName);
+        Integer destination = take();
+
+        // The arguments go in consecutive registers, which become the first
+        // registers of the callee's window.
+        Integer window = nextTemp;
+        for(int i = 0; i < args.size(); i++) {
+            temp();
+        }
+        for(int i = 0; i < args.size(); i++) {
+            into(args.get(i), window + i);
+        }
+
+        code.writeByte(RegCodes.Call.ordinal());
+        backPatches.addBackPatch(fun.getLabel(), code.getFinger());
+        code.writeInteger(0).writeShort(window).writeShort(destination);
+
+        return destination;
+    }
+
+    @Override
+    public Integer visitPower(StmntParser.PowerContext ctx) {
+        ConstantFolder.Constant known = constantOf(ctx);
+        if(known != null) {
+            return loadImmediate(take(), known.type, known.value);
+        }
+        return binary(RegCodes.Pow, ctx.left, ctx.right);
+    }
+
+    @Override
+    public Integer visitMult(StmntParser.MultContext ctx) {
+        ConstantFolder.Constant known = constantOf(ctx);
+        if(known != null) {
+            return loadImmediate(take(), known.type, known.value);
+        }
+        String op = ctx.op.getText();
+        if(op.equals("*")) {
+            return binary(RegCodes.Mul, ctx.left, ctx.right);
+        }
+        else if(op.equals("div")) {
+            return binary(RegCodes.Div, ctx.left, ctx.right);
+        }
+        return binary(RegCodes.Rem, ctx.left, ctx.right);
+    }
+
+    @Override
+    public Integer visitAdd(StmntParser.AddContext ctx) {
+        ConstantFolder.Constant known = constantOf(ctx);
+        if(known != null) {
+            return loadImmediate(take(), known.type, known.value);
+        }
+        if(ctx.op.getText().equals("+")) {
+            return binary(RegCodes.Add, ctx.left, ctx.right);
+        }
+        return binary(RegCodes.Sub, ctx.left, ctx.right);
+    }
+
+    @Override
+    public Integer visitNumber(StmntParser.NumberContext ctx) {
+        Integer value = Integer.valueOf(ctx.NUMBER().getText().replace("_", ""));
+        return loadImmediate(take(), RuntimeType.iInteger, value);
+    }
+
+    @Override
+    public Integer visitId(StmntParser.IdContext ctx) {
+        ConstantFolder.Constant known = constantOf(ctx);
+        if(known != null) {
+            return loadImmediate(take(), known.type, known.value);
+        }
+        return variable(ctx.ID().getText());
+    }
+
+    @Override
+    public Integer visitStringExp(StmntParser.StringExpContext ctx)  {
+        String value = ctx.STRING().getText();
+        value = value.substring(1);
+        value = value.substring(0, value.length() - 1);
+
+        Integer label = stringPool.get(value);
+        if(label == null) {
+            label = labelMaker.make();
+            stringPool.put(value, label);
+        }
+
+        Integer destination = take();
+        code.writeByte(RegCodes.LoadI.ordinal()).writeShort(destination)
+            .writeByte(RuntimeType.iString);
+        backPatches.addBackPatch(label, code.getFinger());
+        code.writeInteger(0);
+
+        return destination;
+    }
+
+    @Override
+    public Integer visitLogicNot(StmntParser.LogicNotContext ctx) {
+        ConstantFolder.Constant known = constantOf(ctx);
+        if(known != null) {
+            return loadImmediate(take(), known.type, known.value);
+        }
+        Integer destination = take();
+        Integer value = visit(ctx.logicExp());
+        code.writeByte(RegCodes.Not.ordinal()).writeShort(destination).writeShort(value);
+        return destination;
+    }
+
+    @Override
+    public Integer visitLogicAnd(StmntParser.LogicAndContext ctx) {
+        ConstantFolder.Constant known = constantOf(ctx);
+        if(known != null) {
+            return loadImmediate(take(), known.type, known.value);
+        }
+        if(options.getShortCircuit()) {
+            return shortCircuit(ctx);
+        }
+        return binary(RegCodes.And, ctx.left, ctx.right);
+    }
+
+    @Override
+    public Integer visitLogicOr(StmntParser.LogicOrContext ctx) {
+        ConstantFolder.Constant known = constantOf(ctx);
+        if(known != null) {
+            return loadImmediate(take(), known.type, known.value);
+        }
+        if(options.getShortCircuit()) {
+            return shortCircuit(ctx);
+        }
+        return binary(RegCodes.Or, ctx.left, ctx.right);
+    }
+
+    @Override
+    public Integer visitLogicId(StmntParser.LogicIdContext ctx) {
+        ConstantFolder.Constant known = constantOf(ctx);
+        if(known != null) {
+            return loadImmediate(take(), known.type, known.value);
+        }
+        return variable(ctx.ID().getText());
+    }
+
+    @Override
+    public Integer visitLitTrue(StmntParser.LitTrueContext ctx) {
+        return loadImmediate(take(), RuntimeType.iBoolean, 1);
+    }
+
+    @Override
+    public Integer visitLitFalse(StmntParser.LitFalseContext ctx) {
+        return loadImmediate(take(), RuntimeType.iBoolean, 0);
+    }
+
+    @Override
+    public Integer visitIntRelExp(StmntParser.IntRelExpContext ctx) {
+        ConstantFolder.Constant known = constantOf(ctx);
+        if(known != null) {
+            return loadImmediate(take(), known.type, known.value);
+        }
+        return binary(relation(ctx.op.getText()), ctx.left, ctx.right);
+    }
+
+    @Override
+    public Integer visitStringRelExp(StmntParser.StringRelExpContext ctx) {
+        ConstantFolder.Constant known = constantOf(ctx);
+        if(known != null) {
+            return loadImmediate(take(), known.type, known.value);
+        }
+        return binary(relation(ctx.op.getText()), ctx.left, ctx.right);
+    }
+
+    // The rules below just wrap one expression; pass its register up.
+
+    @Override
+    public Integer visitArithE(StmntParser.ArithEContext ctx) {
+        return visit(ctx.arithExp());
+    }
+
+    @Override
+    public Integer visitStringE(StmntParser.StringEContext ctx) {
+        return visit(ctx.stringExp());
+    }
+
+    @Override
+    public Integer visitLogicE(StmntParser.LogicEContext ctx) {
+        return visit(ctx.logicExp());
+    }
+
+    @Override
+    public Integer visitArithGroup(StmntParser.ArithGroupContext ctx) {
+        return visit(ctx.arithExp());
+    }
+
+    @Override
+    public Integer visitLogicGroup(StmntParser.LogicGroupContext ctx) {
+        return visit(ctx.logicExp());
+    }
+
+    @Override
+    public Integer visitLogicIntRel(StmntParser.LogicIntRelContext ctx) {
+        return visit(ctx.intRelExp());
+    }
+
+    @Override
+    public Integer visitLogicStringRel(StmntParser.LogicStringRelContext ctx) {
+        return visit(ctx.stringRelExp());
+    }
+
+    @Override
+    public Integer visitLogicLit(StmntParser.LogicLitContext ctx) {
+        return visit(ctx.boolLit());
+    }
+
+    //------------------------------------------------------------------------------
+
+    /**
+     * Compile one statement.  No temporary lives from one statement to the next.
+     */
+    private void statement(StmntParser.StatementContext ctx) {
+        nextTemp = variableTop;
+        visit(ctx);
+    }
+
+    /**
+     * Emit the Frame instruction that starts a window and reset register allocation
+     * for it.  Returns where the register count goes once it is known.
+     */
+    private Integer beginFrame(Integer parameterCount, Integer variableCount) {
+        variableTop = variableCount;
+        nextTemp = variableCount;
+        highWater = variableCount;
+        code.writeByte(RegCodes.Frame.ordinal()).writeInteger(parameterCount);
+        Integer frameSizeAt = code.getFinger();
+        code.writeInteger(0);
+        return frameSizeAt;
+    }
+
+    /**
+     * Compile tree so its value ends up in register destination.
+     */
+    private Integer into(ParseTree tree, Integer destination) {
+        Integer saved = wanted;
+        wanted = destination;
+        Integer value = visit(tree);
+        wanted = saved;
+        if(!value.equals(destination)) {
+            code.writeByte(RegCodes.Mov.ordinal()).writeShort(destination)
+                .writeShort(value);
+        }
+        return destination;
+    }
+
+    /**
+     * The register the expression being compiled should write: the one its parent
+     * asked for, or a new temporary.  Subexpressions don't inherit the request.
+     */
+    private Integer take() {
+        Integer destination = wanted;
+        wanted = null;
+        return destination != null ? destination : temp();
+    }
+
+    private Integer temp() {
+        Integer register = nextTemp++;
+        checkRegister(nextTemp);
+        highWater = Math.max(highWater, nextTemp);
+        return register;
+    }
+
+    private void checkRegister(Integer count) {
+        if(count > maxRegister) {
+            throw new RuntimeError("too many registers needed; the limit is " +
+                                   maxRegister);
+        }
+    }
+
+    private Integer binary(RegCodes op, ParserRuleContext left, ParserRuleContext right) {
+        Integer destination = take();
+        Integer a = visit(left);
+        // A call in the right operand could change the variable on the left, which
+        // the stack machine would already have copied.
+        if(a < variableTop && containsCall(right)) {
+            Integer copy = temp();
+            code.writeByte(RegCodes.Mov.ordinal()).writeShort(copy).writeShort(a);
+            a = copy;
+        }
+        Integer b = visit(right);
+        code.writeByte(op.ordinal()).writeShort(destination).writeShort(a).writeShort(b);
+        return destination;
+    }
+
+    private Integer variable(String name) {
+        LookupPair location = resolve(name);
+        if(location.frames == 0) {
+            return location.offset;
+        }
+        Integer destination = take();
+        code.writeByte(RegCodes.GLoad.ordinal()).writeShort(destination)
+            .writeShort(location.offset);
+        return destination;
+    }
+
+    private Integer loadImmediate(Integer destination, RuntimeType type, Integer value) {
+        code.writeByte(RegCodes.LoadI.ordinal()).writeShort(destination)
+            .writeByte(type).writeInteger(value);
+        return destination;
+    }
+
+    private void jumpIfFalse(StmntParser.LogicExpContext test, int label) {
+        if(options.getShortCircuit()) {
+            jumpWhen(test, false, label);
+        }
+        else {
+            plainJumpIfFalse(test, label);
+        }
+    }
+
+    /**
+     * Jump to label when test comes out as sense, evaluating and and or from left to
+     * right only as far as needed to know.  Compile.jumpWhen does the same for the
+     * stack machine.
+     */
+    private void jumpWhen(StmntParser.LogicExpContext test, Boolean sense, int label) {
+        ConstantFolder.Constant known = constantOf(test);
+        if(known != null) {
+            if((known.value == 1) == sense) {
+                jump(label);
+            }
+        }
+        else if(test instanceof StmntParser.LogicGroupContext) {
+            jumpWhen(((StmntParser.LogicGroupContext)test).logicExp(), sense, label);
+        }
+        else if(test instanceof StmntParser.LogicNotContext) {
+            jumpWhen(((StmntParser.LogicNotContext)test).logicExp(), !sense, label);
+        }
+        else if(test instanceof StmntParser.LogicAndContext) {
+            StmntParser.LogicAndContext and = (StmntParser.LogicAndContext)test;
+            if(!sense) {
+                jumpWhen(and.left, false, label);
+                jumpWhen(and.right, false, label);
+            }
+            else {
+                int isFalse = labelMaker.make();
+                jumpWhen(and.left, false, isFalse);
+                jumpWhen(and.right, true, label);
+                backPatches.setAddress(isFalse, code.getFinger());
+            }
+        }
+        else if(test instanceof StmntParser.LogicOrContext) {
+            StmntParser.LogicOrContext or = (StmntParser.LogicOrContext)test;
+            if(sense) {
+                jumpWhen(or.left, true, label);
+                jumpWhen(or.right, true, label);
+            }
+            else {
+                int isTrue = labelMaker.make();
+                jumpWhen(or.left, true, isTrue);
+                jumpWhen(or.right, false, label);
+                backPatches.setAddress(isTrue, code.getFinger());
+            }
+        }
+        else if(!sense) {
+            plainJumpIfFalse(test, label);
+        }
+        else {
+            Integer value = visit(test);
+            code.writeByte(RegCodes.JmpT.ordinal()).writeShort(value);
+            backPatches.addBackPatch(label, code.getFinger());
+            code.writeInteger(0);
+        }
+    }
+
+    /**
+     * The value of an and or or, computed with jumps.
+     */
+    private Integer shortCircuit(StmntParser.LogicExpContext ctx) {
+        Integer destination = take();
+        int isFalse = labelMaker.make();
+        int done = labelMaker.make();
+
+        jumpWhen(ctx, false, isFalse);
+        loadImmediate(destination, RuntimeType.iBoolean, 1);
+        jump(done);
+        backPatches.setAddress(isFalse, code.getFinger());
+        loadImmediate(destination, RuntimeType.iBoolean, 0);
+        backPatches.setAddress(done, code.getFinger());
+        return destination;
+    }
+
+    private void plainJumpIfFalse(StmntParser.LogicExpContext test, int label) {
+        ConstantFolder.Constant known = constantOf(test);
+        if(known != null) {
+            // A test that always holds needs no code, and one that never does is a jump.
+            if(known.value == 0) {
+                jump(label);
+            }
+            return;
+        }
+        Integer value = visit(test);
+        code.writeByte(RegCodes.JmpF.ordinal()).writeShort(value);
+        backPatches.addBackPatch(label, code.getFinger());
+        code.writeInteger(0);
+    }
+
+    /**
+     * The value the constant folder found for ctx, or null.
+     */
+    private ConstantFolder.Constant constantOf(ParseTree ctx) {
+        if(constants == null) {
+            return null;
+        }
+        return constants.constantOf(ctx);
+    }
+
+    private void jump(int label) {
+        code.writeByte(RegCodes.Jmp.ordinal());
+        backPatches.addBackPatch(label, code.getFinger());
+        code.writeInteger(0);
+    }
+
+    /**
+     * Find the register of a variable.  The answer's frames is 1 for a global seen
+     * from inside a function, which needs GLoad or GStore, and 0 for a register in
+     * the current window.  Parameters take their registers by position.
+     */
+    private LookupPair resolve(String name) {
+        for(Scope scope = currentScope; scope != null; scope = scope.getParent()) {
+            if(scope.holds(name)) {
+                LookupPair location = new LookupPair();
+                location.frames = scope == globalScope && parameters != null ? 1 : 0;
+                if(scope == parameterScope) {
+                    location.offset = parameters.indexOf(name);
+                }
+                else {
+                    location.offset = bases.get(scope) + scope.indexOf(name);
+                }
+                return location;
+            }
+        }
+        throw new RuntimeError("Cannot find " + name + " in scopes");
+    }
+
+    private Boolean containsCall(ParseTree tree) {
+        if(tree instanceof StmntParser.FuncCallContext) {
+            return true;
+        }
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            if(containsCall(tree.getChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private RegCodes relation(String op) {
+        switch(op) {
+        case "<":
+            return RegCodes.Lt;
+        case "<=":
+            return RegCodes.Lte;
+        case "?=":
+            return RegCodes.Eq;
+        case "!=":
+            return RegCodes.Neq;
+        case ">=":
+            return RegCodes.Gte;
+        default:
+            return RegCodes.Gt;
+        }
+    }
+
+    /**
+     * Use the values found by a constant folder that has already run over the tree.
+     */
+    public void setConstants(ConstantFolder constants) {
+        this.constants = constants;
+    }
+
+    /**
+     * Leave out the code a reachability analysis of the tree found can't run.
+     */
+    public void setReachability(Reachability reachability) {
+        this.reachability = reachability;
+    }
+
+    public void writeCodeTo(String fileName) {
+        code.writeTo(fileName);
+    }
+
+    private CodeBuffer code;
+    private ParseTreeProperty<Scope> scopes;
+    private BackPatch backPatches;
+    private LinkedHashMap<String, Integer> stringPool;
+    private Labeller labelMaker;
+    private Scope currentScope;
+    private Scope globalScope;
+    private Scope parameterScope;
+    private List<String> parameters;
+    private Map<String, FuncMeta> functionNameSpace;
+    private Map<StmntParser.FuncDeclContext, FuncMeta> functions =
+        new HashMap<StmntParser.FuncDeclContext, FuncMeta>();
+    private Map<Scope, Integer> bases;
+    private Boolean functionBody = false;
+    private Integer variableTop = 0;
+    private Integer nextTemp = 0;
+    private Integer highWater = 0;
+    private Integer wanted;
+    private ConstantFolder constants;
+    private Reachability reachability;
+    private Options options;
+}
@@ -0,0 +1,178 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.Stream;
+
+/**
+ * <p>Compiled function segments kept in a directory between compiles, so a function
+ * that hasn't changed needn't be compiled again.  Each segment is filed under a
+ * fingerprint of everything that went into compiling it; Compile works out what
+ * that is, this only keeps the files.</p>
+ *
+ * <p>Every fingerprint starts from segmentFormat and the class files of the compiler, the
+ * common library (byte codes, code buffers, scopes, labels) and the parser, so
+ * segments a different compiler made are never reused.  Failing to write a segment
+ * only costs compiling that function again next time.</p>
+ */
+public class SegmentCache {
+
+    public SegmentCache(String directory) {
+        this.directory = Paths.get(directory);
+        reused = 0;
+        compiled = 0;
+        try {
+            Files.createDirectories(this.directory);
+            seed = MessageDigest.getInstance("SHA-256");
+            seed.update(segmentFormat.getBytes(StandardCharsets.UTF_8));
+            digestClasses(seed, Compile.class);
+            digestClasses(seed, common.ByteCodes.class);
+            digestClasses(seed, parser.StmntParser.class);
+        }
+        catch(IOException | NoSuchAlgorithmException | URISyntaxException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Add to digest every class in the same package and jar or directory as c.
+     */
+    private static void digestClasses(MessageDigest digest, Class<?> c)
+        throws IOException, URISyntaxException {
+        Path location = Paths.get(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+        if(!Files.isDirectory(location)) {
+            digest.update(Files.readAllBytes(location));
+            return;
+        }
+        Package p = c.getPackage();
+        if(p != null && !p.getName().isEmpty()) {
+            location = location.resolve(p.getName().replace('.', '/'));
+        }
+        try(Stream<Path> files = Files.list(location)) {
+            for(Path file : (Iterable<Path>)files.sorted()::iterator) {
+                if(file.toString().endsWith(".class")) {
+                    digest.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+                    digest.update(Files.readAllBytes(file));
+                }
+            }
+        }
+    }
+
+    /**
+     * The fingerprint of description, which should say everything the segment's
+     * code depends on.
+     */
+    public String fingerprint(String description) {
+        try {
+            MessageDigest digest = (MessageDigest)seed.clone();
+            byte[] hash = digest.digest(description.getBytes(StandardCharsets.UTF_8));
+            StringBuilder answer = new StringBuilder();
+            for(byte b : hash) {
+                answer.append(String.format("%02x", b & 0xFF));
+            }
+            return answer.toString();
+        }
+        catch(CloneNotSupportedException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * The segment filed under fingerprint, or null if there isn't one.
+     */
+    public byte[] load(String fingerprint) {
+        Path file = directory.resolve(fingerprint);
+        try {
+            byte[] segment = Files.readAllBytes(file);
+            reused++;
+            return segment;
+        }
+        catch(IOException e) {
+            compiled++;
+            return null;
+        }
+    }
+
+    /**
+     * File segment under fingerprint.  It is written to a file of its own and then
+     * moved into place, so a compile running at the same time never reads half of
+     * one.
+     */
+    public void store(String fingerprint, byte[] segment) {
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(directory, fingerprint, ".tmp");
+            Files.write(temporary, segment);
+            Files.move(temporary, directory.resolve(fingerprint),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e) {
+            System.err.println("cannot save a compiled function in " + directory + ": " +
+                               e.getMessage());
+            try {
+                if(temporary != null) {
+                    Files.deleteIfExists(temporary);
+                }
+            }
+            catch(IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Throw away the segment filed under fingerprint, which load returned but which
+     * couldn't be read.  The function is counted as compiled instead of reused.
+     */
+    public void discard(String fingerprint) {
+        reused--;
+        compiled++;
+        try {
+            Files.deleteIfExists(directory.resolve(fingerprint));
+        }
+        catch(IOException e) {
+            // It will be replaced when the function is stored again.
+        }
+    }
+
+    /**
+     * Print how many functions were reused from the cache and how many compiled.
+     */
+    public void report(PrintStream out) {
+        out.println(String.format("%-16s %6d reused %6d compiled", "cached functions",
+                                  reused, compiled));
+    }
+
+    /**
+     * The layout of a saved segment.  Change it whenever the way segments are
+     * written or read changes.
+     */
+    private static final String segmentFormat = "segment 2";
+
+    private Path directory;
+    private MessageDigest seed;
+    private Integer reused;
+    private Integer compiled;
+}
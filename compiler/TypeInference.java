@@ -0,0 +1,328 @@
+/*
+  The statementLanguage programming language
+  Copyright 2016 Eric J. Deiman
+
+  This file is part of the statementLanguage programming language.
+  The statementLanguage programming language is free software: you can redistribute it
+  and/ormodify it under the terms of the GNU General Public License as published by the
+  Free Software Foundation, either version 3 of the License, or (at your option) any
+  later version.
+  
+  The statementLanguage programming language is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+  You should have received a copy of the GNU General Public License along with the
+  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+*/
+
+import org.antlr.v4.runtime.tree.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import common.RuntimeType;
+import common.Scope;
+
+import parser.*;
+
+/**
+ * <p>Work out the type each expression is sure to have when it is evaluated, so the
+ * compiler can use the byte codes that skip checking their operands' types.  Main
+ * runs this before compiling for the stack machine.</p>
+ *
+ * <p>An operator's result has the type the operator makes, because the machine stops
+ * the program rather than produce anything else.  A variable's type is followed
+ * through the code: an assignment gives it the type of its value, the branches of an
+ * if keep what they agree on, and a loop keeps what holds on every trip around.
+ * Variables start out as the integer zero the machine clears them to, except function
+ * parameters, which are unknown.  A function call may assign to any variable it can
+ * reach, so after one nothing is known.</p>
+ */
+public class TypeInference extends StmntBaseVisitor<RuntimeType> {
+
+    public TypeInference(ParseTreeProperty<Scope> scopes) {
+        this.scopes = scopes;
+        types = new ParseTreeProperty<RuntimeType>();
+        known = new HashMap<Variable, RuntimeType>();
+    }
+
+    /**
+     * Infer the types in the program in tree.
+     */
+    public void infer(ParseTree tree) {
+        visit(tree);
+    }
+
+    /**
+     * The type the expression ctx always has, or null if it isn't known.
+     */
+    public RuntimeType typeOf(ParseTree ctx) {
+        return types.get(ctx);
+    }
+
+    @Override
+    public RuntimeType visitProg(StmntParser.ProgContext ctx) {
+        currentScope = scopes.get(ctx);
+        clear(currentScope);
+        visitChildren(ctx);
+        return null;
+    }
+
+    @Override
+    public RuntimeType visitFuncDecl(StmntParser.FuncDeclContext ctx) {
+        // Nothing known where the function is declared is known when it's called.
+        HashMap<Variable, RuntimeType> saved = known;
+        known = new HashMap<Variable, RuntimeType>();
+        currentScope = scopes.get(ctx);
+        visit(ctx.block());
+        currentScope = currentScope.getParent();
+        known = saved;
+        return null;
+    }
+
+    @Override
+    public RuntimeType visitBlock(StmntParser.BlockContext ctx) {
+        currentScope = scopes.get(ctx);
+        clear(currentScope);
+        for(StmntParser.StatementContext statement : ctx.statement()) {
+            visit(statement);
+        }
+        for(String name : currentScope.getNames()) {
+            known.remove(new Variable(currentScope, name));
+        }
+        currentScope = currentScope.getParent();
+        return null;
+    }
+
+    @Override
+    public RuntimeType visitAssign(StmntParser.AssignContext ctx) {
+        RuntimeType type = visit(ctx.expression());
+        Variable variable = variable(ctx.ID().getText());
+        if(type != null) {
+            known.put(variable, type);
+        }
+        else {
+            known.remove(variable);
+        }
+        return null;
+    }
+
+    @Override
+    public RuntimeType visitIfStmnt(StmntParser.IfStmntContext ctx) {
+        // Each test runs where the ones before it failed.
+        List<HashMap<Variable, RuntimeType>> ends = new Vector<HashMap<Variable, RuntimeType>>();
+        for(StmntParser.IfBlockContext branch : ctx.ifBlock()) {
+            visit(branch.test);
+            HashMap<Variable, RuntimeType> failed = new HashMap<Variable, RuntimeType>(known);
+            visit(branch.body);
+            ends.add(known);
+            known = failed;
+        }
+        if(ctx.block() != null) {
+            visit(ctx.block());
+        }
+        for(HashMap<Variable, RuntimeType> end : ends) {
+            known = meet(known, end);
+        }
+        return null;
+    }
+
+    @Override
+    public RuntimeType visitWhileStmnt(StmntParser.WhileStmntContext ctx) {
+        // Go around until what is known at the top stops shrinking.  The types
+        // recorded on the last trip are the ones that hold every time.
+        while(true) {
+            HashMap<Variable, RuntimeType> top = new HashMap<Variable, RuntimeType>(known);
+            visit(ctx.test);
+            HashMap<Variable, RuntimeType> done = new HashMap<Variable, RuntimeType>(known);
+            visit(ctx.body);
+            known = meet(top, known);
+            if(known.equals(top)) {
+                known = done;
+                return null;
+            }
+        }
+    }
+
+    // The rules below type expressions.
+
+    @Override
+    public RuntimeType visitArithE(StmntParser.ArithEContext ctx) {
+        return record(ctx, visit(ctx.arithExp()));
+    }
+
+    @Override
+    public RuntimeType visitStringE(StmntParser.StringEContext ctx) {
+        return record(ctx, RuntimeType.iString);
+    }
+
+    @Override
+    public RuntimeType visitLogicE(StmntParser.LogicEContext ctx) {
+        return record(ctx, visit(ctx.logicExp()));
+    }
+
+    @Override
+    public RuntimeType visitFuncCall(StmntParser.FuncCallContext ctx) {
+        visitChildren(ctx);
+        known.clear();
+        return null;
+    }
+
+    @Override
+    public RuntimeType visitArithGroup(StmntParser.ArithGroupContext ctx) {
+        return record(ctx, visit(ctx.arithExp()));
+    }
+
+    @Override
+    public RuntimeType visitPower(StmntParser.PowerContext ctx) {
+        return integer(ctx, ctx.left, ctx.right);
+    }
+
+    @Override
+    public RuntimeType visitMult(StmntParser.MultContext ctx) {
+        return integer(ctx, ctx.left, ctx.right);
+    }
+
+    @Override
+    public RuntimeType visitAdd(StmntParser.AddContext ctx) {
+        return integer(ctx, ctx.left, ctx.right);
+    }
+
+    @Override
+    public RuntimeType visitNumber(StmntParser.NumberContext ctx) {
+        return record(ctx, RuntimeType.iInteger);
+    }
+
+    @Override
+    public RuntimeType visitId(StmntParser.IdContext ctx) {
+        return record(ctx, known.get(variable(ctx.ID().getText())));
+    }
+
+    @Override
+    public RuntimeType visitLogicGroup(StmntParser.LogicGroupContext ctx) {
+        return record(ctx, visit(ctx.logicExp()));
+    }
+
+    @Override
+    public RuntimeType visitLogicNot(StmntParser.LogicNotContext ctx) {
+        visit(ctx.logicExp());
+        return record(ctx, RuntimeType.iBoolean);
+    }
+
+    @Override
+    public RuntimeType visitLogicAnd(StmntParser.LogicAndContext ctx) {
+        visit(ctx.left);
+        visit(ctx.right);
+        return record(ctx, RuntimeType.iBoolean);
+    }
+
+    @Override
+    public RuntimeType visitLogicOr(StmntParser.LogicOrContext ctx) {
+        visit(ctx.left);
+        visit(ctx.right);
+        return record(ctx, RuntimeType.iBoolean);
+    }
+
+    @Override
+    public RuntimeType visitLogicIntRel(StmntParser.LogicIntRelContext ctx) {
+        visit(ctx.intRelExp());
+        return record(ctx, RuntimeType.iBoolean);
+    }
+
+    @Override
+    public RuntimeType visitLogicStringRel(StmntParser.LogicStringRelContext ctx) {
+        return record(ctx, RuntimeType.iBoolean);
+    }
+
+    @Override
+    public RuntimeType visitLogicLit(StmntParser.LogicLitContext ctx) {
+        return record(ctx, RuntimeType.iBoolean);
+    }
+
+    @Override
+    public RuntimeType visitLogicId(StmntParser.LogicIdContext ctx) {
+        return record(ctx, known.get(variable(ctx.ID().getText())));
+    }
+
+    //------------------------------------------------------------------------------
+
+    /**
+     * A variable: a name in the scope that defines it.
+     */
+    private static class Variable {
+        Variable(Scope scope, String name) {
+            this.scope = scope;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Variable && ((Variable)other).scope == scope &&
+                ((Variable)other).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(scope) * 31 + name.hashCode();
+        }
+
+        private final Scope scope;
+        private final String name;
+    }
+
+    private RuntimeType record(ParseTree ctx, RuntimeType type) {
+        // A loop's later trips may know less than its first, so forget old answers.
+        if(type != null) {
+            types.put(ctx, type);
+        }
+        else {
+            types.removeFrom(ctx);
+        }
+        return type;
+    }
+
+    private RuntimeType integer(ParseTree ctx, ParseTree left, ParseTree right) {
+        visit(left);
+        visit(right);
+        return record(ctx, RuntimeType.iInteger);
+    }
+
+    /**
+     * What is known both in one and in other.
+     */
+    private HashMap<Variable, RuntimeType> meet(Map<Variable, RuntimeType> one,
+                                                Map<Variable, RuntimeType> other) {
+        HashMap<Variable, RuntimeType> answer = new HashMap<Variable, RuntimeType>();
+        for(Map.Entry<Variable, RuntimeType> entry : one.entrySet()) {
+            if(entry.getValue() == other.get(entry.getKey())) {
+                answer.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * The variables of scope start as integer zeros.
+     */
+    private void clear(Scope scope) {
+        for(String name : scope.getNames()) {
+            known.put(new Variable(scope, name), RuntimeType.iInteger);
+        }
+    }
+
+    private Variable variable(String name) {
+        for(Scope scope = currentScope; scope != null; scope = scope.getParent()) {
+            if(scope.holds(name)) {
+                return new Variable(scope, name);
+            }
+        }
+        return new Variable(null, name);
+    }
+
+    private ParseTreeProperty<Scope> scopes;
+    private ParseTreeProperty<RuntimeType> types;
+    private HashMap<Variable, RuntimeType> known;
+    private Scope currentScope;
+}
@@ -22,13 +22,53 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 
 import parser.*;
+import common.CommandLine;
+import common.Output;
 import common.RuntimeError;
 
 public class Main {
     public static void main(String[] args) throws Exception {
+        int bufferSize = Output.defaultBufferSize;
+        Output.Policy policy = Output.Policy.Full;
+        Boolean shortCircuit = false;
+        int fileArg = 0;
+        CommandLine line = new CommandLine(args, usage, "-buffer", "-flush");
+
+        // Everything before the last argument is an option.
+        while(fileArg < args.length - 1) {
+            if(!line.hasValue(fileArg)) {
+                return;
+            }
+            switch(args[fileArg]) {
+            case "-buffer":
+                Integer size = line.count(fileArg + 1, 0);
+                if(size == null) {
+                    return;
+                }
+                bufferSize = size;
+                fileArg += 2;
+                break;
+            case "-flush":
+                policy = line.policy(fileArg + 1);
+                if(policy == null) {
+                    return;
+                }
+                fileArg += 2;
+                break;
+            case "-shortcircuit":
+                shortCircuit = true;
+                fileArg += 1;
+                break;
+            default:
+                System.err.println("ignoring unknown option " + args[fileArg]);
+                fileArg += 1;
+                break;
+            }
+        }
+
         String inputFileName = null;
-        if(args.length > 0) {
-            inputFileName = args[0];
+        if(args.length > fileArg) {
+            inputFileName = args[fileArg];
         }
 
         InputStream is = System.in;
@@ -46,6 +86,8 @@ public class Main {
         if(parser.getNumberOfSyntaxErrors() == 0){
             try {
                 StmntInterpreter interpreter = new StmntInterpreter();
+                interpreter.setOutput(new Output(System.out, bufferSize, policy));
+                interpreter.setShortCircuit(shortCircuit);
                 interpreter.visit(tree);
             }
             catch(RuntimeError err) {
@@ -57,4 +99,6 @@ public class Main {
             System.out.println("oops! try again.");
         }
     }
+
+    private static final String usage = "usage: interpreter [options] file.stmnt";
 }
@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.Vector;
 
 import parser.*;
+import common.Output;
 import common.RuntimeError;
 import common.RuntimeType;
 
@@ -32,16 +33,38 @@ public class StmntInterpreter extends StmntBaseVisitor<InterpValue> {
     public Environment environment = new Environment();
     public Map<String, FuncData> functionNameSpace = new HashMap<String, FuncData>();
 
+    /**
+     * Send what the program prints to output.  By default it goes to System.out
+     * through an Output with the default buffer size and policy.
+     */
+    public void setOutput(Output output) {
+        this.output = output;
+    }
+
+    /**
+     * Whether and and or skip their right operand when the left one decides the
+     * answer.  The compiler's -shortcircuit option does the same.
+     */
+    public void setShortCircuit(Boolean shortCircuit) {
+        this.shortCircuit = shortCircuit;
+    }
+
     @Override
     public InterpValue visitProg(StmntParser.ProgContext ctx) {
         InterpValue answer = iIntergerZero;
 
-        for(StmntParser.FuncDeclContext fctx : ctx.funcDecl()) {
-            visit(fctx);
-        }
+        try {
+            for(StmntParser.FuncDeclContext fctx : ctx.funcDecl()) {
+                visit(fctx);
+            }
 
-        for(StmntParser.StatementContext sctx : ctx.statement()) {
-            answer = visit(sctx);
+            for(StmntParser.StatementContext sctx : ctx.statement()) {
+                answer = visit(sctx);
+            }
+        }
+        finally {
+            // Whether it finished or failed, what the program printed goes out.
+            output.flush();
         }
 
         return answer;
@@ -69,11 +92,11 @@ public class StmntInterpreter extends StmntBaseVisitor<InterpValue> {
             if(answer == null) {
                 answer = iStringNull;
             }
-            System.out.print(answer.toString());
-            System.out.print(" ");
+            output.print(answer.toString());
+            output.print(' ');
         }
 
-        System.out.println();
+        output.println();
 
         return answer;
     }
@@ -260,6 +283,15 @@ public class StmntInterpreter extends StmntBaseVisitor<InterpValue> {
     @Override
     public InterpValue visitLogicAnd(StmntParser.LogicAndContext ctx) {
         InterpValue ileft = visit(ctx.left);
+        if(shortCircuit) {
+            expectType(RuntimeType.iBoolean, ileft, ctx.getStart());
+            if(!(Boolean)ileft.getValue()) {
+                return ileft;
+            }
+            InterpValue iright = visit(ctx.right);
+            expectType(RuntimeType.iBoolean, iright, ctx.getStart());
+            return iright;
+        }
         InterpValue iright = visit(ctx.right);
         expectTypes(RuntimeType.iBoolean, ileft, iright, ctx.getStart());
         return ileft.doLogic("and", iright);
@@ -268,6 +300,15 @@ public class StmntInterpreter extends StmntBaseVisitor<InterpValue> {
     @Override
     public InterpValue visitLogicOr(StmntParser.LogicOrContext ctx) {
         InterpValue ileft = visit(ctx.left);
+        if(shortCircuit) {
+            expectType(RuntimeType.iBoolean, ileft, ctx.getStart());
+            if((Boolean)ileft.getValue()) {
+                return ileft;
+            }
+            InterpValue iright = visit(ctx.right);
+            expectType(RuntimeType.iBoolean, iright, ctx.getStart());
+            return iright;
+        }
         InterpValue iright = visit(ctx.right);
         expectTypes(RuntimeType.iBoolean, ileft, iright, ctx.getStart());
         return ileft.doLogic("or", iright);
@@ -373,4 +414,6 @@ public class StmntInterpreter extends StmntBaseVisitor<InterpValue> {
     private InterpValue iIntergerZero = new InterpValue(RuntimeType.iInteger, 0);
     private InterpValue iStringNull = new InterpValue(RuntimeType.iString, "\"<null>\"");
     private Boolean seenReturn = false;
+    private Output output = new Output();
+    private Boolean shortCircuit = false;
 }
@@ -0,0 +1,69 @@
+#
+#  The statementLanguage programming language
+#  Copyright 2017 Eric J. Deiman
+#
+#  This file is part of the statementLanguage programming language.
+#  The statementLanguage programming language is free software: you can redistribute it
+#  and/ormodify it under the terms of the GNU General Public License as published by the
+#  Free Software Foundation, either version 3 of the License, or (at your option) any
+#  later version.
+#  
+#  The statementLanguage programming language is distributed in the hope that it will be useful,
+#  but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+#  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+#  You should have received a copy of the GNU General Public License along with the
+#  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
+#
+
+# Time the abstract machine on each benchmark program, once compiled for the stack
+# machine and once for the register machine (-reg).  Compile first so only the run
+# itself is measured.  Any arguments are passed through to am; -count prints how
+# many instructions each run executed.
+#
+# ./runbench.sh -hooks times each run twice instead, once with -nojit and once with
+# -count, to show what the trace hooks cost.  -count runs the tracing loop, which
+# never calls the JIT, so the untraced run has to leave the JIT off too for the
+# difference to be the hooks alone.
+
+runs=("$*")
+if [ "$1" = -hooks ]; then
+    shift
+    runs=("-nojit $*" "-count $*")
+fi
+
+for f in bench/*.stmnt
+do
+    for backend in "" -reg
+    do
+        java -jar bin/compile.jar $backend $f
+        for run in "${runs[@]}"
+        do
+            echo $f $backend $run
+            time java -jar bin/am.jar $run ${f/.stmnt/.o} > /dev/null
+        done
+    done
+done
+
+# Time loading a large image, read into the heap and then mapped (-mmap).  The
+# program has thousands of small functions, each with its own string, and runs
+# each of them once, so reading and decoding the image is most of the work.  Both
+# ways decode the whole image into the heap; -mmap only skips copying the file
+# in first.
+
+dir=$(mktemp -d)
+for i in $(seq 1 5000)
+do
+    echo "f$i(x) { if(x > $i) { print \"past $i\" x; } return x + 1; }"
+done > $dir/load.stmnt
+echo "x <- 0;" >> $dir/load.stmnt
+for i in $(seq 1 5000)
+do
+    echo "x <- f$i(x);"
+done >> $dir/load.stmnt
+java -jar bin/compile.jar $dir/load.stmnt
+for mapping in "" -mmap
+do
+    echo load $mapping
+    time java -jar bin/am.jar "$@" $mapping $dir/load.o > /dev/null
+done
+rm -r $dir
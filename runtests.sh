@@ -15,13 +15,140 @@
 #  statementLanguage programming language. If not, see <https://www.gnu.org/licenses/>
 #
 
+# Each test runs through the interpreter, then through the compiler and abstract
+# machine once for the stack machine and once for the register machine (-reg).
+# All of that is done twice, the second time with and/or short-circuiting.  A test
+# with an .expected file beside it has to print what that says, too.
+
+for mode in "" -shortcircuit
+do
+    for f in tests/*.stmnt
+    do
+        java -jar bin/interpreter.jar $mode $f > $f.i
+        if [ -f ${f/.stmnt/.expected} ]; then
+            cmp -s ${f/.stmnt/.expected} $f.i
+            if [ $? -ne 0 ]; then
+                echo Trouble with $f $mode against ${f/.stmnt/.expected}
+            fi
+        fi
+        for backend in "" -reg
+        do
+            java -jar bin/compile.jar $mode $backend $f
+            java -jar  bin/am.jar ${f/.stmnt/.o} > $f.c
+            cmp -s $f.i $f.c
+            if [ $? -ne 0 ]; then
+                echo Trouble with $f $mode $backend
+            fi
+        done
+    done
+done
+
+# Tail calls must run in constant stack, which the interpreter can't do, so these
+# are checked against the .expected file beside them.  The machine gets too little
+# memory for a stack that grows with every call.
+
+for f in tests/tailCalls/*.stmnt
+do
+    java -jar bin/compile.jar $f
+    java -Xmx32m -jar bin/am.jar ${f/.stmnt/.o} > $f.c
+    cmp -s ${f/.stmnt/.expected} $f.c
+    if [ $? -ne 0 ]; then
+        echo Trouble with $f
+    fi
+done
+
+# Compiling function bodies on several threads has to give the same image as
+# compiling them one after another.
+
+for f in tests/*.stmnt tests/tailCalls/*.stmnt
+do
+    java -jar bin/compile.jar -jobs 1 $f
+    mv ${f/.stmnt/.o} ${f/.stmnt/.serial.o}
+    java -jar bin/compile.jar -jobs 4 $f
+    cmp -s ${f/.stmnt/.serial.o} ${f/.stmnt/.o}
+    if [ $? -ne 0 ]; then
+        echo Trouble with $f -jobs 4
+    fi
+    rm ${f/.stmnt/.serial.o}
+done
+
+# Functions kept by -cache have to link into the same image as a fresh compile,
+# both when the second compile reuses them and when the kept files are corrupt and
+# have to be thrown away and compiled again.
+
+cache=$(mktemp -d)
+for f in tests/*.stmnt tests/tailCalls/*.stmnt
+do
+    java -jar bin/compile.jar $f
+    mv ${f/.stmnt/.o} ${f/.stmnt/.fresh.o}
+    java -jar bin/compile.jar -cache $cache $f
+    java -jar bin/compile.jar -cache $cache $f
+    cmp -s ${f/.stmnt/.fresh.o} ${f/.stmnt/.o}
+    if [ $? -ne 0 ]; then
+        echo Trouble with $f -cache reused
+    fi
+    for segment in $(ls $cache)
+    do
+        segment=$cache/$segment
+        head -c 3 $segment > $segment.cut
+        mv $segment.cut $segment
+    done
+    java -jar bin/compile.jar -cache $cache $f
+    cmp -s ${f/.stmnt/.fresh.o} ${f/.stmnt/.o}
+    if [ $? -ne 0 ]; then
+        echo Trouble with $f -cache corrupt
+    fi
+    rm ${f/.stmnt/.fresh.o}
+done
+rm -r $cache
+
+# Turning an optimization off mustn't change what a test prints.
+
+for option in -notypes -nodead -nohoist
+do
+    for f in tests/*.stmnt
+    do
+        java -jar bin/compile.jar $f
+        java -jar bin/am.jar ${f/.stmnt/.o} > $f.c
+        java -jar bin/compile.jar $option $f
+        java -jar bin/am.jar ${f/.stmnt/.o} > $f.off
+        cmp -s $f.c $f.off
+        if [ $? -ne 0 ]; then
+            echo Trouble with $f $option
+        fi
+    done
+done
+
+# A test with a .report file beside it has to have the dead code -report says that
+# file does.
+
 for f in tests/*.stmnt
 do
-    java -jar bin/interpreter.jar $f > $f.i
+    if [ -f ${f/.stmnt/.report} ]; then
+        java -jar bin/compile.jar -report $f 2>&1 | grep "^unused\|^dead" > $f.r
+        cmp -s ${f/.stmnt/.report} $f.r
+        if [ $? -ne 0 ]; then
+            echo Trouble with $f -report
+        fi
+    fi
+done
+
+# A loop that never runs mustn't work out its invariants either, so each of these
+# runs as many instructions hoisted as not, as well as printing what its .expected
+# file says.
+
+for f in tests/hoisting/*.stmnt
+do
     java -jar bin/compile.jar $f
-    java -jar  bin/am.jar ${f/.stmnt/.o} > $f.c
-    cmp -s $f.i $f.c
+    java -jar bin/am.jar -count ${f/.stmnt/.o} > $f.c 2> $f.count
+    cmp -s ${f/.stmnt/.expected} $f.c
     if [ $? -ne 0 ]; then
         echo Trouble with $f
     fi
+    java -jar bin/compile.jar -nohoist $f
+    java -jar bin/am.jar -count ${f/.stmnt/.o} > /dev/null 2> $f.off
+    cmp -s $f.count $f.off
+    if [ $? -ne 0 ]; then
+        echo Trouble with $f -nohoist
+    fi
 done